@@ -0,0 +1,60 @@
+package org.nodewox.client;
+
+import org.json.JSONObject;
+
+// detached thing owning the channels under benchmark
+class BenchThing extends Thing {
+
+    BenchThing() {
+        super(null, "bench");
+    }
+
+    @Override
+    protected boolean loadConfig() {
+        return true;
+    }
+
+    @Override
+    protected void saveConfig(JSONObject data) {
+    }
+
+    @Override
+    protected void onUnregistered() {
+    }
+
+    @Override
+    protected void onParamChanged(NodeParam param) {
+    }
+
+    // sample vector of dtype x dim as boxed values
+    static Object[] boxedSample(Channel.DataType dtype, int dim) {
+        Object[] arr = new Object[dim];
+        for (int i = 0; i < dim; i++) {
+            switch (dtype) {
+                case RAW:
+                case BYTE:
+                    arr[i] = (byte) (i + 1);
+                    break;
+                case INT16:
+                    arr[i] = (short) (i + 1);
+                    break;
+                case INT32:
+                    arr[i] = i + 1;
+                    break;
+                case INT64:
+                    arr[i] = (long) (i + 1);
+                    break;
+                case FLOAT:
+                    arr[i] = i + 0.5f;
+                    break;
+                case BOOL:
+                    arr[i] = (i & 1) == 0;
+                    break;
+                case STRING:
+                    arr[i] = "v" + i;
+                    break;
+            }
+        }
+        return arr;
+    }
+}
@@ -0,0 +1,126 @@
+package org.nodewox.client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+//
+// FemaleChannel.handlePacket() for a channel overriding the typed handler of its
+// datatype, and for one implementing only the boxed perform()
+//
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ChannelDecodeBenchmark {
+
+    @Param({"RAW", "BYTE", "INT16", "INT32", "INT64", "FLOAT", "STRING", "BOOL"})
+    public Channel.DataType dtype;
+
+    @Param({"1", "8", "64", "1024"})
+    public int dim;
+
+    private byte[] mPacket;
+    private TypedChannel mTyped;
+    private BoxedChannel mBoxed;
+
+    @Setup
+    public void setup() {
+        BenchThing thing = new BenchThing();
+
+        MaleChannel encoder = new MaleChannel(thing, "m", dtype, dim) {
+            @Override
+            protected void onParamChanged(NodeParam param) {
+            }
+        };
+        synchronized (encoder) {
+            mPacket = encoder.takePacket(encoder.encodeData(BenchThing.boxedSample(dtype, dim)));
+        }
+
+        mTyped = new TypedChannel(thing, dtype, dim);
+        mBoxed = new BoxedChannel(thing, dtype, dim);
+    }
+
+    @Benchmark
+    public void typed(Blackhole bh) {
+        mTyped.bh = bh;
+        mTyped.handlePacket(mPacket);
+    }
+
+    @Benchmark
+    public void boxed(Blackhole bh) {
+        mBoxed.bh = bh;
+        mBoxed.handlePacket(mPacket);
+    }
+
+    static class BoxedChannel extends FemaleChannel {
+        Blackhole bh;
+
+        BoxedChannel(Thing thing, DataType dtype, int dim) {
+            super(thing, "boxed", dtype, dim);
+        }
+
+        @Override
+        protected void onParamChanged(NodeParam param) {
+        }
+
+        @Override
+        protected void perform(int src, int gid, Object[] data) {
+            bh.consume(data);
+        }
+    }
+
+    static class TypedChannel extends BoxedChannel {
+        TypedChannel(Thing thing, DataType dtype, int dim) {
+            super(thing, dtype, dim);
+        }
+
+        @Override
+        protected void performBytes(int src, int gid, byte[] data) {
+            bh.consume(data);
+        }
+
+        @Override
+        protected void performShorts(int src, int gid, short[] data) {
+            bh.consume(data);
+        }
+
+        @Override
+        protected void performInts(int src, int gid, int[] data) {
+            bh.consume(data);
+        }
+
+        @Override
+        protected void performLongs(int src, int gid, long[] data) {
+            bh.consume(data);
+        }
+
+        @Override
+        protected void performFloats(int src, int gid, float[] data) {
+            bh.consume(data);
+        }
+
+        @Override
+        protected void performBools(int src, int gid, boolean[] data) {
+            bh.consume(data);
+        }
+
+        @Override
+        protected void performStrings(int src, int gid, String[] data) {
+            bh.consume(data);
+        }
+
+        @Override
+        protected void performRaw(int src, int gid, ByteBuffer data) {
+            bh.consume(data);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.nodewox.client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+//
+// encode path of MaleChannel.feedXXX(): codec into the reused channel buffer, then
+// copy of the payload handed to the mqtt client. publishing itself is not included.
+//
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ChannelEncodeBenchmark {
+
+    @Param({"RAW", "BYTE", "INT16", "INT32", "INT64", "FLOAT", "STRING", "BOOL"})
+    public Channel.DataType dtype;
+
+    @Param({"1", "8", "64", "1024"})
+    public int dim;
+
+    private MaleChannel mChannel;
+    private Object[] mBoxed;
+    private ByteBuffer mBytes;
+    private short[] mShorts;
+    private int[] mInts;
+    private long[] mLongs;
+    private float[] mFloats;
+    private boolean[] mBools;
+
+    @Setup
+    public void setup() {
+        mChannel = new MaleChannel(new BenchThing(), "m", dtype, dim) {
+            @Override
+            protected void onParamChanged(NodeParam param) {
+            }
+        };
+
+        mBoxed = BenchThing.boxedSample(dtype, dim);
+        mBytes = ByteBuffer.allocate(dim);
+        mShorts = new short[dim];
+        mInts = new int[dim];
+        mLongs = new long[dim];
+        mFloats = new float[dim];
+        mBools = new boolean[dim];
+        for (int i = 0; i < dim; i++) {
+            mBytes.put(i, (byte) (i + 1));
+            mShorts[i] = (short) (i + 1);
+            mInts[i] = i + 1;
+            mLongs[i] = i + 1;
+            mFloats[i] = i + 0.5f;
+            mBools[i] = (i & 1) == 0;
+        }
+    }
+
+    // feedData(Object[])
+    @Benchmark
+    public byte[] boxed() {
+        synchronized (mChannel) {
+            return mChannel.takePacket(mChannel.encodeData(mBoxed));
+        }
+    }
+
+    // typed feed of channel's datatype, STRING has no typed feed and uses feedData()
+    @Benchmark
+    public byte[] typed() {
+        synchronized (mChannel) {
+            int res;
+            switch (dtype) {
+                case RAW:
+                case BYTE:
+                    res = mChannel.encodeBytes(mBytes);
+                    break;
+                case INT16:
+                    res = mChannel.encodeShorts(mShorts);
+                    break;
+                case INT32:
+                    res = mChannel.encodeInts(mInts);
+                    break;
+                case INT64:
+                    res = mChannel.encodeLongs(mLongs);
+                    break;
+                case FLOAT:
+                    res = mChannel.encodeFloats(mFloats);
+                    break;
+                case BOOL:
+                    res = mChannel.encodeBools(mBools);
+                    break;
+                default:
+                    res = mChannel.encodeData(mBoxed);
+            }
+            return mChannel.takePacket(res);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.nodewox.client;
+
+import android.os.IBinder;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+//
+// NxService.publish() called from 1, 4 and 8 threads at once, against a client that
+// takes every message: the lock-free path (snapshot) against the former publish()
+// holding the service lock (locked).
+//
+// a Messenger needs the android runtime, so the service has none: the client never
+// completes a message, and the in-flight window is wide enough not to fill up within
+// an iteration.
+//
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ServiceContentionBenchmark {
+
+    private static final byte[] PAYLOAD = new byte[32];
+
+    private final BenchService mService = new BenchService();
+
+    @Setup(Level.Trial)
+    public void connect() throws Exception {
+        set("mMqttCli", new BenchClient());
+        set("mConnected", true);
+    }
+
+    @Setup(Level.Iteration)
+    public void openWindow() throws Exception {
+        set("mWindow", new InflightWindow(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, 0, 0, 0));
+    }
+
+    private void set(String name, Object value) throws Exception {
+        Field f = NxService.class.getDeclaredField(name);
+        f.setAccessible(true);
+        f.set(mService, value);
+    }
+
+    private void snapshot() {
+        mService.publish("/bench", PAYLOAD, 0, false, null);
+    }
+
+    // shape of publish() before the state snapshot
+    private void locked() {
+        synchronized (mService) {
+            mService.publish("/bench", PAYLOAD, 0, false, null);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void snapshot1() {
+        snapshot();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void snapshot4() {
+        snapshot();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void snapshot8() {
+        snapshot();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void locked1() {
+        locked();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void locked4() {
+        locked();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void locked8() {
+        locked();
+    }
+
+    static class BenchService extends NxService {
+
+        @Override
+        protected IBinder getBinder() {
+            return null;
+        }
+    }
+
+    // accepts every message and never completes it
+    static class BenchClient extends MqttAsyncClient {
+
+        BenchClient() throws MqttException {
+            super("tcp://localhost:1883", "bench", null);
+        }
+
+        @Override
+        public IMqttDeliveryToken publish(String topic, MqttMessage message, Object userContext,
+                                          IMqttActionListener callback) {
+            return null;
+        }
+    }
+}
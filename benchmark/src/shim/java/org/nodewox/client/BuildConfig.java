@@ -0,0 +1,6 @@
+package org.nodewox.client;
+
+// stands in for the class generated by the android build
+public final class BuildConfig {
+    public static final boolean DEBUG = false;
+}
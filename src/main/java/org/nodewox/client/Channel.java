@@ -11,12 +11,18 @@ public abstract class Channel extends Node {
     private final Gender gender;
     private final DataType datatype;
     private final int datadim;
+    private final ChannelCodec codec;
+
+    // topic of channel data, rebuilt when ID changes
+    private String mTopic = null;
+    private int mTopicID = 0;
 
     public Channel(Thing thing, String key, Gender gender, DataType dtype) {
         super(thing.getApp(), key, thing);
         this.gender = gender;
         this.datatype = dtype;
         this.datadim = (dtype == RAW) ? 0 : 1;
+        this.codec = ChannelCodec.forType(dtype);
     }
 
     public Channel(Thing thing, String key, Gender gender, DataType dtype, int dim) {
@@ -24,12 +30,39 @@ public abstract class Channel extends Node {
         this.gender = gender;
         this.datatype = dtype;
         this.datadim = (dtype == RAW) ? 0 : (dim > 0 ? dim : 1);
+        this.codec = ChannelCodec.forType(dtype);
+    }
+
+    // channel with its own wire format, datatype is taken from codec
+    public Channel(Thing thing, String key, Gender gender, ChannelCodec codec, int dim) {
+        super(thing.getApp(), key, thing);
+        this.gender = gender;
+        this.datatype = codec.getDataType();
+        this.datadim = (datatype == RAW) ? 0 : (dim > 0 ? dim : 1);
+        this.codec = codec;
+    }
+
+    public Thing getThing() {
+        return (Thing) getParent();
+    }
+
+    public String getTopic() {
+        int id = getID();
+        if (mTopic == null || mTopicID != id) {
+            mTopic = getApp().getTopicPrefix() + id;
+            mTopicID = id;
+        }
+        return mTopic;
     }
 
     public DataType getDataType() {
         return datatype;
     }
 
+    public ChannelCodec getCodec() {
+        return codec;
+    }
+
     public int getDataDim() {
         return datadim;
     }
@@ -0,0 +1,650 @@
+package org.nodewox.client;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+//
+// wire format of channel data. a channel resolves its codec once at construction,
+// built-in codecs cover every DataType and can be replaced by register(), or a
+// channel can be given its own codec, e.g. a fixed-point FLOAT.
+//
+// encode methods write n elements into buf and return EMPTY when all of them are
+// zero (sent as an empty payload), DONE, OVERFLOW when buf is too small to hold
+// them (call again with a larger one) or UNSUPPORTED for a foreign element type.
+//
+public abstract class ChannelCodec {
+
+    public static final int EMPTY = 0;
+    public static final int DONE = 1;
+    public static final int OVERFLOW = -1;
+    public static final int UNSUPPORTED = -2;
+
+    private static final ChannelCodec[] sCodecs = new ChannelCodec[Channel.DataType.values().length];
+
+    static {
+        sCodecs[Channel.DataType.RAW.ordinal()] = new RawCodec();
+        sCodecs[Channel.DataType.BYTE.ordinal()] = new ByteCodec();
+        sCodecs[Channel.DataType.INT16.ordinal()] = new Int16Codec();
+        sCodecs[Channel.DataType.INT32.ordinal()] = new Int32Codec();
+        sCodecs[Channel.DataType.INT64.ordinal()] = new Int64Codec();
+        sCodecs[Channel.DataType.FLOAT.ordinal()] = new FloatCodec();
+        sCodecs[Channel.DataType.STRING.ordinal()] = new StringCodec();
+        sCodecs[Channel.DataType.BOOL.ordinal()] = new BoolCodec();
+    }
+
+    // codec used by channels of dtype created from now on
+    public static synchronized void register(Channel.DataType dtype, ChannelCodec codec) {
+        if (BuildConfig.DEBUG && codec.getDataType() != dtype)
+            throw new AssertionError("codec of " + codec.getDataType() + " registered for " + dtype);
+        sCodecs[dtype.ordinal()] = codec;
+    }
+
+    public static synchronized ChannelCodec forType(Channel.DataType dtype) {
+        return sCodecs[dtype.ordinal()];
+    }
+
+    // datatype seen by application, also announced to the server
+    public abstract Channel.DataType getDataType();
+
+    // encoded bytes per element, 0 for variable length
+    public abstract int getElementSize();
+
+    public abstract int encode(Object[] data, int n, ByteBuffer buf);
+
+    public int encodeBytes(ByteBuffer data, int n, ByteBuffer buf) {
+        return UNSUPPORTED;
+    }
+
+    public int encodeShorts(short[] data, int n, ByteBuffer buf) {
+        return UNSUPPORTED;
+    }
+
+    public int encodeInts(int[] data, int n, ByteBuffer buf) {
+        return UNSUPPORTED;
+    }
+
+    public int encodeLongs(long[] data, int n, ByteBuffer buf) {
+        return UNSUPPORTED;
+    }
+
+    public int encodeFloats(float[] data, int n, ByteBuffer buf) {
+        return UNSUPPORTED;
+    }
+
+    public int encodeBools(boolean[] data, int n, ByteBuffer buf) {
+        return UNSUPPORTED;
+    }
+
+    // write count zero elements, used to fill fixed-size sample vectors
+    public abstract void pad(int count, ByteBuffer buf);
+
+    // read dim boxed elements, missing ones are zero
+    public abstract Object[] decode(ByteBuffer bf, int dim);
+
+    // decode a packet and hand it to the channel's typed handler
+    public abstract void deliver(FemaleChannel ch, int src, int gid, ByteBuffer bf);
+
+    //
+    // access to female channel's reused arrays and typed handlers, for codecs
+    // living outside this package
+    //
+    protected static byte[] bytesOf(FemaleChannel ch) {
+        return ch.byteArray();
+    }
+
+    protected static short[] shortsOf(FemaleChannel ch) {
+        return ch.shortArray();
+    }
+
+    protected static int[] intsOf(FemaleChannel ch) {
+        return ch.intArray();
+    }
+
+    protected static long[] longsOf(FemaleChannel ch) {
+        return ch.longArray();
+    }
+
+    protected static float[] floatsOf(FemaleChannel ch) {
+        return ch.floatArray();
+    }
+
+    protected static boolean[] boolsOf(FemaleChannel ch) {
+        return ch.boolArray();
+    }
+
+    protected static String[] stringsOf(FemaleChannel ch) {
+        return ch.stringArray();
+    }
+
+    protected static void perform(FemaleChannel ch, int src, int gid, byte[] data) {
+        ch.performBytes(src, gid, data);
+    }
+
+    protected static void perform(FemaleChannel ch, int src, int gid, short[] data) {
+        ch.performShorts(src, gid, data);
+    }
+
+    protected static void perform(FemaleChannel ch, int src, int gid, int[] data) {
+        ch.performInts(src, gid, data);
+    }
+
+    protected static void perform(FemaleChannel ch, int src, int gid, long[] data) {
+        ch.performLongs(src, gid, data);
+    }
+
+    protected static void perform(FemaleChannel ch, int src, int gid, float[] data) {
+        ch.performFloats(src, gid, data);
+    }
+
+    protected static void perform(FemaleChannel ch, int src, int gid, boolean[] data) {
+        ch.performBools(src, gid, data);
+    }
+
+    protected static void perform(FemaleChannel ch, int src, int gid, String[] data) {
+        ch.performStrings(src, gid, data);
+    }
+
+    protected static void perform(FemaleChannel ch, int src, int gid, ByteBuffer data) {
+        ch.performRaw(src, gid, data);
+    }
+
+    protected static byte[] utf8(String s) {
+        try {
+            return s.getBytes("utf-8");
+        } catch (UnsupportedEncodingException e) {
+            return s.getBytes();
+        }
+    }
+
+    protected static void zeros(int count, ByteBuffer buf) {
+        for (int i = 0; i < count; i++)
+            buf.put((byte) 0);
+    }
+
+    public static final class RawCodec extends ChannelCodec {
+        @Override
+        public Channel.DataType getDataType() {
+            return Channel.DataType.RAW;
+        }
+
+        @Override
+        public int getElementSize() {
+            return 1;
+        }
+
+        @Override
+        public int encode(Object[] data, int n, ByteBuffer buf) {
+            if (buf.remaining() < n)
+                return OVERFLOW;
+            boolean nz = false;
+            for (int i = 0; i < n; i++) {
+                byte v = (Byte) data[i];
+                buf.put(v);
+                nz |= v != 0;
+            }
+            return nz ? DONE : EMPTY;
+        }
+
+        @Override
+        public int encodeBytes(ByteBuffer data, int n, ByteBuffer buf) {
+            if (buf.remaining() < n)
+                return OVERFLOW;
+            boolean nz = false;
+            int start = data.position();
+            for (int i = start; i < start + n; i++) {
+                byte v = data.get(i);
+                buf.put(v);
+                nz |= v != 0;
+            }
+            return nz ? DONE : EMPTY;
+        }
+
+        @Override
+        public void pad(int count, ByteBuffer buf) {
+        }
+
+        @Override
+        public Object[] decode(ByteBuffer bf, int dim) {
+            Object[] arr = new Byte[bf.remaining()];
+            for (int i = 0; i < arr.length; i++)
+                arr[i] = bf.get();
+            return arr;
+        }
+
+        @Override
+        public void deliver(FemaleChannel ch, int src, int gid, ByteBuffer bf) {
+            ch.performRaw(src, gid, bf.slice().asReadOnlyBuffer());
+        }
+    }
+
+    public static final class ByteCodec extends ChannelCodec {
+        @Override
+        public Channel.DataType getDataType() {
+            return Channel.DataType.BYTE;
+        }
+
+        @Override
+        public int getElementSize() {
+            return 1;
+        }
+
+        @Override
+        public int encode(Object[] data, int n, ByteBuffer buf) {
+            if (buf.remaining() < n)
+                return OVERFLOW;
+            boolean nz = false;
+            for (int i = 0; i < n; i++) {
+                byte v = (Byte) data[i];
+                buf.put(v);
+                nz |= v != 0;
+            }
+            return nz ? DONE : EMPTY;
+        }
+
+        @Override
+        public int encodeBytes(ByteBuffer data, int n, ByteBuffer buf) {
+            if (buf.remaining() < n)
+                return OVERFLOW;
+            boolean nz = false;
+            int start = data.position();
+            for (int i = start; i < start + n; i++) {
+                byte v = data.get(i);
+                buf.put(v);
+                nz |= v != 0;
+            }
+            return nz ? DONE : EMPTY;
+        }
+
+        @Override
+        public void pad(int count, ByteBuffer buf) {
+            zeros(count, buf);
+        }
+
+        @Override
+        public Object[] decode(ByteBuffer bf, int dim) {
+            Object[] arr = new Object[dim];
+            for (int i = 0; i < dim; i++)
+                arr[i] = bf.hasRemaining() ? bf.get() : (byte) 0;
+            return arr;
+        }
+
+        @Override
+        public void deliver(FemaleChannel ch, int src, int gid, ByteBuffer bf) {
+            byte[] out = ch.byteArray();
+            int avail = Math.min(out.length, bf.remaining());
+            bf.get(out, 0, avail);
+            for (int i = avail; i < out.length; i++)
+                out[i] = 0;
+            ch.performBytes(src, gid, out);
+        }
+    }
+
+    public static final class Int16Codec extends ChannelCodec {
+        @Override
+        public Channel.DataType getDataType() {
+            return Channel.DataType.INT16;
+        }
+
+        @Override
+        public int getElementSize() {
+            return 2;
+        }
+
+        @Override
+        public int encode(Object[] data, int n, ByteBuffer buf) {
+            if (buf.remaining() < n * 2)
+                return OVERFLOW;
+            boolean nz = false;
+            for (int i = 0; i < n; i++) {
+                short v = (Short) data[i];
+                buf.putShort(v);
+                nz |= v != 0;
+            }
+            return nz ? DONE : EMPTY;
+        }
+
+        @Override
+        public int encodeShorts(short[] data, int n, ByteBuffer buf) {
+            if (buf.remaining() < n * 2)
+                return OVERFLOW;
+            boolean nz = false;
+            for (int i = 0; i < n; i++) {
+                buf.putShort(data[i]);
+                nz |= data[i] != 0;
+            }
+            return nz ? DONE : EMPTY;
+        }
+
+        @Override
+        public void pad(int count, ByteBuffer buf) {
+            zeros(count * 2, buf);
+        }
+
+        @Override
+        public Object[] decode(ByteBuffer bf, int dim) {
+            Object[] arr = new Object[dim];
+            for (int i = 0; i < dim; i++)
+                arr[i] = bf.remaining() >= 2 ? bf.getShort() : (short) 0;
+            return arr;
+        }
+
+        @Override
+        public void deliver(FemaleChannel ch, int src, int gid, ByteBuffer bf) {
+            short[] out = ch.shortArray();
+            int avail = Math.min(out.length, bf.remaining() / 2);
+            bf.asShortBuffer().get(out, 0, avail);
+            for (int i = avail; i < out.length; i++)
+                out[i] = 0;
+            ch.performShorts(src, gid, out);
+        }
+    }
+
+    public static final class Int32Codec extends ChannelCodec {
+        @Override
+        public Channel.DataType getDataType() {
+            return Channel.DataType.INT32;
+        }
+
+        @Override
+        public int getElementSize() {
+            return 4;
+        }
+
+        @Override
+        public int encode(Object[] data, int n, ByteBuffer buf) {
+            if (buf.remaining() < n * 4)
+                return OVERFLOW;
+            boolean nz = false;
+            for (int i = 0; i < n; i++) {
+                int v = (Integer) data[i];
+                buf.putInt(v);
+                nz |= v != 0;
+            }
+            return nz ? DONE : EMPTY;
+        }
+
+        @Override
+        public int encodeInts(int[] data, int n, ByteBuffer buf) {
+            if (buf.remaining() < n * 4)
+                return OVERFLOW;
+            boolean nz = false;
+            for (int i = 0; i < n; i++) {
+                buf.putInt(data[i]);
+                nz |= data[i] != 0;
+            }
+            return nz ? DONE : EMPTY;
+        }
+
+        @Override
+        public void pad(int count, ByteBuffer buf) {
+            zeros(count * 4, buf);
+        }
+
+        @Override
+        public Object[] decode(ByteBuffer bf, int dim) {
+            Object[] arr = new Object[dim];
+            for (int i = 0; i < dim; i++)
+                arr[i] = bf.remaining() >= 4 ? bf.getInt() : 0;
+            return arr;
+        }
+
+        @Override
+        public void deliver(FemaleChannel ch, int src, int gid, ByteBuffer bf) {
+            int[] out = ch.intArray();
+            int avail = Math.min(out.length, bf.remaining() / 4);
+            bf.asIntBuffer().get(out, 0, avail);
+            for (int i = avail; i < out.length; i++)
+                out[i] = 0;
+            ch.performInts(src, gid, out);
+        }
+    }
+
+    public static final class Int64Codec extends ChannelCodec {
+        @Override
+        public Channel.DataType getDataType() {
+            return Channel.DataType.INT64;
+        }
+
+        @Override
+        public int getElementSize() {
+            return 8;
+        }
+
+        @Override
+        public int encode(Object[] data, int n, ByteBuffer buf) {
+            if (buf.remaining() < n * 8)
+                return OVERFLOW;
+            boolean nz = false;
+            for (int i = 0; i < n; i++) {
+                long v = (Long) data[i];
+                buf.putLong(v);
+                nz |= v != 0;
+            }
+            return nz ? DONE : EMPTY;
+        }
+
+        @Override
+        public int encodeLongs(long[] data, int n, ByteBuffer buf) {
+            if (buf.remaining() < n * 8)
+                return OVERFLOW;
+            boolean nz = false;
+            for (int i = 0; i < n; i++) {
+                buf.putLong(data[i]);
+                nz |= data[i] != 0;
+            }
+            return nz ? DONE : EMPTY;
+        }
+
+        @Override
+        public void pad(int count, ByteBuffer buf) {
+            zeros(count * 8, buf);
+        }
+
+        @Override
+        public Object[] decode(ByteBuffer bf, int dim) {
+            Object[] arr = new Object[dim];
+            for (int i = 0; i < dim; i++)
+                arr[i] = bf.remaining() >= 8 ? bf.getLong() : 0L;
+            return arr;
+        }
+
+        @Override
+        public void deliver(FemaleChannel ch, int src, int gid, ByteBuffer bf) {
+            long[] out = ch.longArray();
+            int avail = Math.min(out.length, bf.remaining() / 8);
+            bf.asLongBuffer().get(out, 0, avail);
+            for (int i = avail; i < out.length; i++)
+                out[i] = 0;
+            ch.performLongs(src, gid, out);
+        }
+    }
+
+    public static final class FloatCodec extends ChannelCodec {
+        @Override
+        public Channel.DataType getDataType() {
+            return Channel.DataType.FLOAT;
+        }
+
+        @Override
+        public int getElementSize() {
+            return 4;
+        }
+
+        @Override
+        public int encode(Object[] data, int n, ByteBuffer buf) {
+            if (buf.remaining() < n * 4)
+                return OVERFLOW;
+            boolean nz = false;
+            for (int i = 0; i < n; i++) {
+                float v = (Float) data[i];
+                buf.putFloat(v);
+                nz |= v != 0;
+            }
+            return nz ? DONE : EMPTY;
+        }
+
+        @Override
+        public int encodeFloats(float[] data, int n, ByteBuffer buf) {
+            if (buf.remaining() < n * 4)
+                return OVERFLOW;
+            boolean nz = false;
+            for (int i = 0; i < n; i++) {
+                buf.putFloat(data[i]);
+                nz |= data[i] != 0;
+            }
+            return nz ? DONE : EMPTY;
+        }
+
+        @Override
+        public void pad(int count, ByteBuffer buf) {
+            zeros(count * 4, buf);
+        }
+
+        @Override
+        public Object[] decode(ByteBuffer bf, int dim) {
+            Object[] arr = new Object[dim];
+            for (int i = 0; i < dim; i++)
+                arr[i] = bf.remaining() >= 4 ? bf.getFloat() : 0f;
+            return arr;
+        }
+
+        @Override
+        public void deliver(FemaleChannel ch, int src, int gid, ByteBuffer bf) {
+            float[] out = ch.floatArray();
+            int avail = Math.min(out.length, bf.remaining() / 4);
+            bf.asFloatBuffer().get(out, 0, avail);
+            for (int i = avail; i < out.length; i++)
+                out[i] = 0;
+            ch.performFloats(src, gid, out);
+        }
+    }
+
+    public static final class BoolCodec extends ChannelCodec {
+        @Override
+        public Channel.DataType getDataType() {
+            return Channel.DataType.BOOL;
+        }
+
+        @Override
+        public int getElementSize() {
+            return 1;
+        }
+
+        @Override
+        public int encode(Object[] data, int n, ByteBuffer buf) {
+            if (buf.remaining() < n)
+                return OVERFLOW;
+            boolean nz = false;
+            for (int i = 0; i < n; i++) {
+                boolean v = (Boolean) data[i];
+                buf.put((byte) (v ? 1 : 0));
+                nz |= v;
+            }
+            return nz ? DONE : EMPTY;
+        }
+
+        @Override
+        public int encodeBools(boolean[] data, int n, ByteBuffer buf) {
+            if (buf.remaining() < n)
+                return OVERFLOW;
+            boolean nz = false;
+            for (int i = 0; i < n; i++) {
+                buf.put((byte) (data[i] ? 1 : 0));
+                nz |= data[i];
+            }
+            return nz ? DONE : EMPTY;
+        }
+
+        @Override
+        public void pad(int count, ByteBuffer buf) {
+            zeros(count, buf);
+        }
+
+        @Override
+        public Object[] decode(ByteBuffer bf, int dim) {
+            Object[] arr = new Object[dim];
+            for (int i = 0; i < dim; i++)
+                arr[i] = bf.hasRemaining() && bf.get() != 0;
+            return arr;
+        }
+
+        @Override
+        public void deliver(FemaleChannel ch, int src, int gid, ByteBuffer bf) {
+            boolean[] out = ch.boolArray();
+            int avail = Math.min(out.length, bf.remaining());
+            for (int i = 0; i < avail; i++)
+                out[i] = bf.get() != 0;
+            for (int i = avail; i < out.length; i++)
+                out[i] = false;
+            ch.performBools(src, gid, out);
+        }
+    }
+
+    // every string terminated by '\0'
+    public static final class StringCodec extends ChannelCodec {
+        @Override
+        public Channel.DataType getDataType() {
+            return Channel.DataType.STRING;
+        }
+
+        @Override
+        public int getElementSize() {
+            return 0;
+        }
+
+        @Override
+        public int encode(Object[] data, int n, ByteBuffer buf) {
+            boolean nz = false;
+            for (int i = 0; i < n; i++) {
+                String v = (String) data[i];
+                byte[] s = utf8(v);
+                if (buf.remaining() < s.length + 1)
+                    return OVERFLOW;
+                buf.put(s);
+                buf.put((byte) '\0');
+                nz |= s.length > 0;
+            }
+            return nz ? DONE : EMPTY;
+        }
+
+        @Override
+        public void pad(int count, ByteBuffer buf) {
+            zeros(count, buf);
+        }
+
+        @Override
+        public Object[] decode(ByteBuffer bf, int dim) {
+            Object[] arr = new Object[dim];
+            for (int i = 0; i < dim; i++)
+                arr[i] = read(bf);
+            return arr;
+        }
+
+        @Override
+        public void deliver(FemaleChannel ch, int src, int gid, ByteBuffer bf) {
+            String[] out = ch.stringArray();
+            for (int i = 0; i < out.length; i++)
+                out[i] = read(bf);
+            ch.performStrings(src, gid, out);
+        }
+
+        // read a '\0' terminated string, a string cut by end of packet is kept as is
+        private static String read(ByteBuffer bf) {
+            int start = bf.position();
+            int end = start;
+            int limit = bf.limit();
+            while (end < limit && bf.get(end) != '\0')
+                end++;
+
+            bf.position(end < limit ? end + 1 : limit);
+            if (end == start)
+                return "";
+
+            try {
+                return new String(bf.array(), bf.arrayOffset() + start, end - start, "utf-8");
+            } catch (UnsupportedEncodingException e) {
+                return new String(bf.array(), bf.arrayOffset() + start, end - start);
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package org.nodewox.client;
+
+import java.util.ArrayDeque;
+
+//
+// deficit round-robin over male channels in front of the in-flight window.
+//
+// packets of a channel wait in its own flow while the bulk window is busy. every
+// turn a flow may send weight x QUANTUM bytes, and at most its byte rate per
+// second (token bucket, 0 for no limit). flows are served again when a window
+// slot is released, and by a timer while they wait for rate tokens only.
+//
+final class ChannelScheduler {
+
+    private static final int QUANTUM = 1024;  // bytes per turn and unit of weight
+    private static final long REFILL_DELAY = 20;  // ms
+
+    private final Messenger mMessenger;
+    private final ArrayDeque<Flow> mActive = new ArrayDeque<>();
+    private boolean mTimerSet = false;
+
+    private final Runnable mRefillTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ChannelScheduler.this) {
+                mTimerSet = false;
+            }
+            dispatch();
+        }
+    };
+
+    ChannelScheduler(Messenger messenger) {
+        mMessenger = messenger;
+    }
+
+    synchronized void submit(MaleChannel ch, byte[] packet, boolean block) {
+        Flow f = ch.outboundFlow(this);
+        long now = System.nanoTime();
+        int size = packet == null ? 0 : packet.length;
+
+        // nothing waiting: send at once when window and rate allow
+        if (f.queue.isEmpty() && mActive.isEmpty() && hasRoom() && f.take(size, ch.getByteRate(), now)) {
+            f.sent(size, 0, now);
+            ch.getThing().send(mMessenger, ch, packet, block);
+            return;
+        }
+
+        // the oldest packets make room, counted in Flow.dropped
+        int cap = ch.getFlowCapacity();
+        while (cap > 0 && f.queue.size() >= cap) {
+            f.queue.pollFirst();
+            f.dropped++;
+        }
+        f.queue.addLast(new Item(packet, block, now));
+        if (!f.active) {
+            f.active = true;
+            f.deficit = 0;
+            f.inTurn = false;
+            mActive.addLast(f);
+        }
+        dispatch();
+    }
+
+    // send waiting packets while the window has room
+    synchronized void dispatch() {
+        int starved = 0;  // flows in a row waiting for rate tokens
+        while (!mActive.isEmpty() && starved < mActive.size()) {
+            if (!hasRoom())
+                return;
+
+            Flow f = mActive.peekFirst();
+            MaleChannel ch = f.channel;
+            if (!f.inTurn) {
+                f.deficit += QUANTUM * Math.max(ch.getWeight(), 1);
+                f.inTurn = true;
+            }
+
+            long now = System.nanoTime();
+            int rate = ch.getByteRate();
+            boolean limited = false;
+            while (!f.queue.isEmpty()) {
+                Item it = f.queue.peekFirst();
+                int size = it.packet == null ? 0 : it.packet.length;
+                if (size > f.deficit)
+                    break;
+                if (!f.take(size, rate, now)) {
+                    limited = true;
+                    break;
+                }
+
+                f.queue.pollFirst();
+                f.deficit -= size;
+                f.sent(size, now - it.queued, now);
+                ch.getThing().send(mMessenger, ch, it.packet, it.block);
+
+                if (!hasRoom())
+                    return;  // resume this turn on next release
+            }
+
+            mActive.pollFirst();
+            f.inTurn = false;
+            if (f.queue.isEmpty()) {
+                f.active = false;
+                f.deficit = 0;
+            } else {
+                mActive.addLast(f);
+            }
+            starved = limited ? starved + 1 : 0;
+        }
+
+        if (!mActive.isEmpty() && !mTimerSet) {
+            mTimerSet = true;
+            mMessenger.postDelayed(mRefillTask, REFILL_DELAY);
+        }
+    }
+
+    private boolean hasRoom() {
+        // while offline packets go straight on to the outbox
+        if (!mMessenger.isConnected())
+            return true;
+        return mMessenger.getApp().getService().hasRoom(Messenger.Priority.BULK, 0);
+    }
+
+    // per-channel queue and stats, guarded by the scheduler
+    static final class Flow {
+        final MaleChannel channel;
+        final Object lock;
+        final ArrayDeque<Item> queue = new ArrayDeque<>();
+        boolean active = false;
+        boolean inTurn = false;
+        int deficit = 0;
+
+        // token bucket of byte rate, may go negative by one packet
+        private double tokens = 0;
+        private long refilled = 0;
+
+        long packets = 0;
+        long bytes = 0;
+        long dropped = 0;
+        double delay = 0;  // queueing delay, ns, moving average
+        long maxDelay = 0;
+        double rate = 0;  // bytes per second over the last second
+        private long rateStart = 0;
+        private long rateBytes = 0;
+
+        Flow(MaleChannel channel, Object lock) {
+            this.channel = channel;
+            this.lock = lock;
+        }
+
+        boolean take(int size, int byteRate, long now) {
+            if (byteRate <= 0)
+                return true;
+
+            if (refilled == 0)
+                tokens = byteRate / 10.0;
+            else
+                tokens = Math.min(tokens + (now - refilled) * byteRate / 1e9, Math.max(byteRate / 10.0, 1));
+            refilled = now;
+
+            if (tokens <= 0)
+                return false;
+            tokens -= size;
+            return true;
+        }
+
+        void sent(int size, long waited, long now) {
+            packets++;
+            bytes += size;
+            delay += (waited - delay) / 8;
+            if (waited > maxDelay)
+                maxDelay = waited;
+
+            if (rateStart == 0)
+                rateStart = now;
+            rateBytes += size;
+            if (now - rateStart >= 1000000000L) {
+                rate = rateBytes * 1e9 / (now - rateStart);
+                rateStart = now;
+                rateBytes = 0;
+            }
+        }
+    }
+
+    private static final class Item {
+        final byte[] packet;
+        final boolean block;
+        final long queued;
+
+        Item(byte[] packet, boolean block, long queued) {
+            this.packet = packet;
+            this.block = block;
+            this.queued = queued;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.nodewox.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+//
+// handle to one published message, completed when the broker acknowledged it
+// (qos 1/2) or it was written out (qos 0), or when publishing failed
+//
+public class DeliveryToken {
+
+    private final String mTopic;
+    private final int mQos;
+    private final long mStart = System.nanoTime();
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    private volatile boolean mCompleted = false;
+    private volatile Throwable mError = null;
+    private volatile long mLatency = -1;  // ns
+    private ArrayList<Listener> mListeners = null;
+
+    public DeliveryToken(String topic, int qos) {
+        mTopic = topic;
+        mQos = qos;
+    }
+
+    public static DeliveryToken failed(String topic, int qos, Throwable error) {
+        DeliveryToken t = new DeliveryToken(topic, qos);
+        t.complete(error);
+        return t;
+    }
+
+    public String getTopic() {
+        return mTopic;
+    }
+
+    public int getQos() {
+        return mQos;
+    }
+
+    public boolean isDone() {
+        return mCompleted;
+    }
+
+    public boolean isSuccess() {
+        return mCompleted && mError == null;
+    }
+
+    public Throwable getError() {
+        return mError;
+    }
+
+    // time from publish to completion, -1 until done
+    public long getLatencyNanos() {
+        return mLatency;
+    }
+
+    public long getLatencyMillis() {
+        return mLatency < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(mLatency);
+    }
+
+    // wait up to timeout ms (0 for ever), return true if token completed
+    public boolean waitForCompletion(long timeout) throws InterruptedException {
+        if (timeout <= 0) {
+            mDone.await();
+            return true;
+        }
+        return mDone.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    // call l once token completes, at once if it already did. l runs on the completing thread
+    public void addListener(Listener l) {
+        synchronized (this) {
+            if (!mCompleted) {
+                if (mListeners == null)
+                    mListeners = new ArrayList<>(2);
+                mListeners.add(l);
+                return;
+            }
+        }
+        l.onComplete(this);
+    }
+
+    void complete(Throwable error) {
+        ArrayList<Listener> ls;
+        synchronized (this) {
+            if (mCompleted)
+                return;
+            mError = error;
+            mLatency = System.nanoTime() - mStart;
+            mCompleted = true;
+            ls = mListeners;
+            mListeners = null;
+        }
+        mDone.countDown();
+
+        if (ls != null) {
+            for (Listener l : ls)
+                l.onComplete(this);
+        }
+    }
+
+    // wait once for all tokens up to timeout ms (0 for ever), return true if all completed
+    public static boolean waitAll(Collection<DeliveryToken> tokens, long timeout) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(tokens.size());
+        Listener l = new Listener() {
+            @Override
+            public void onComplete(DeliveryToken token) {
+                latch.countDown();
+            }
+        };
+        for (DeliveryToken t : tokens)
+            t.addListener(l);
+
+        if (timeout <= 0) {
+            latch.await();
+            return true;
+        }
+        return latch.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    public interface Listener {
+        void onComplete(DeliveryToken token);
+    }
+}
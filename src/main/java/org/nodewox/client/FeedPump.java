@@ -0,0 +1,99 @@
+package org.nodewox.client;
+
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+//
+// network thread draining the feed queues of all things into the messenger
+//
+public final class FeedPump implements Runnable {
+
+    private static final int BATCH = 64;
+
+    private final Messenger mMessenger;
+    private final WaitStrategy mWait;
+    private final CopyOnWriteArrayList<FeedQueue> mQueues = new CopyOnWriteArrayList<>();
+    private final Thread mThread;
+    private volatile boolean mParked = false;
+
+    FeedPump(Messenger messenger, WaitStrategy wait) {
+        mMessenger = messenger;
+        mWait = wait;
+        mThread = new Thread(this, "nodewox-feed");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    void register(FeedQueue q) {
+        mQueues.addIfAbsent(q);
+    }
+
+    // called by producers after writing a packet
+    void signal() {
+        if (mParked)
+            LockSupport.unpark(mThread);
+    }
+
+    @Override
+    public void run() {
+        int idle = 0;
+        while (true) {
+            int n = 0;
+            for (FeedQueue q : mQueues) {
+                try {
+                    n += q.drain(mMessenger, BATCH);
+                } catch (RuntimeException e) {
+                    Log.w("nodewox/feed", "publish failed: " + e.getMessage());
+                }
+            }
+
+            if (n > 0) {
+                idle = 0;
+                continue;
+            }
+            idle++;
+
+            switch (mWait) {
+                case BUSY_SPIN:
+                    break;
+
+                case YIELDING:
+                    Thread.yield();
+                    break;
+
+                case SLEEPING:
+                    // spin briefly, then back off up to 1 ms
+                    if (idle > 100)
+                        LockSupport.parkNanos(Math.min(idle - 100, 1000) * TimeUnit.MICROSECONDS.toNanos(1));
+                    else
+                        Thread.yield();
+                    break;
+
+                default:
+                    // park until a producer signals, checking again after announcing it
+                    mParked = true;
+                    if (allEmpty())
+                        LockSupport.park(this);
+                    mParked = false;
+            }
+        }
+    }
+
+    private boolean allEmpty() {
+        for (FeedQueue q : mQueues) {
+            if (!q.isEmpty())
+                return false;
+        }
+        return true;
+    }
+
+    public enum WaitStrategy {
+        BLOCKING,   // park until signalled, lowest cpu use
+        SLEEPING,   // spin, yield, then sleep with backoff, no signalling cost for producers
+        YIELDING,   // yield between polls, low latency
+        BUSY_SPIN   // poll continuously, lowest latency, burns a core
+    }
+}
@@ -0,0 +1,103 @@
+package org.nodewox.client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//
+// encoded packets of one thing's male channels, written by any number of sensor
+// threads without locking and drained by the messenger's feed thread. a producer
+// never waits: when the ring is full the packet is dropped and counted.
+//
+final class FeedQueue {
+
+    private final Thing mThing;
+    private final FeedPump mPump;
+    private final MpscRing<Slot> mRing;
+
+    private final AtomicInteger mMaxDepth = new AtomicInteger(0);
+    private final AtomicLong mOffered = new AtomicLong(0);
+    private final AtomicLong mDropped = new AtomicLong(0);
+
+    FeedQueue(Thing thing, FeedPump pump, int size) {
+        Slot[] slots = new Slot[MpscRing.sizeFor(size)];
+        for (int i = 0; i < slots.length; i++)
+            slots[i] = new Slot();
+
+        mThing = thing;
+        mPump = pump;
+        mRing = new MpscRing<>(slots);
+    }
+
+    boolean offer(MaleChannel ch, byte[] packet, boolean block) {
+        mOffered.incrementAndGet();
+
+        long pos = mRing.claim();
+        if (pos < 0) {
+            mDropped.incrementAndGet();
+            mPump.signal();
+            return false;
+        }
+
+        Slot s = mRing.get(pos);
+        s.channel = ch;
+        s.packet = packet;
+        s.block = block;
+        mRing.publish(pos);
+
+        int depth = mRing.size();
+        int max = mMaxDepth.get();
+        while (depth > max && !mMaxDepth.compareAndSet(max, depth))
+            max = mMaxDepth.get();
+
+        mPump.signal();
+        return true;
+    }
+
+    // publish up to max packets, called on the feed thread. return number published
+    int drain(Messenger mgr, int max) {
+        int n = 0;
+        while (n < max) {
+            long pos = mRing.peek();
+            if (pos < 0)
+                break;
+
+            Slot s = mRing.get(pos);
+            MaleChannel ch = s.channel;
+            byte[] packet = s.packet;
+            boolean block = s.block;
+            s.channel = null;
+            s.packet = null;
+            mRing.release(pos);
+
+            mThing.deliver(mgr, ch, packet, block);
+            n++;
+        }
+        return n;
+    }
+
+    boolean isEmpty() {
+        return mRing.peek() < 0;
+    }
+
+    int depth() {
+        return mRing.size();
+    }
+
+    int getMaxDepth() {
+        return mMaxDepth.get();
+    }
+
+    long getOffered() {
+        return mOffered.get();
+    }
+
+    long getDropped() {
+        return mDropped.get();
+    }
+
+    private static final class Slot {
+        MaleChannel channel;
+        byte[] packet;
+        boolean block;
+    }
+}
@@ -1,10 +1,25 @@
 package org.nodewox.client;
 
-import java.nio.BufferUnderflowException;
+import android.util.Log;
+
 import java.nio.ByteBuffer;
 
 public abstract class FemaleChannel extends Channel {
 
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    // decode arrays reused for every packet, sized to channel's dim
+    private byte[] mBytes = null;
+    private short[] mShorts = null;
+    private int[] mInts = null;
+    private long[] mLongs = null;
+    private float[] mFloats = null;
+    private boolean[] mBools = null;
+    private String[] mStrings = null;
+
+    // packets waiting for dispatch, when the channel has an inbound capacity
+    private volatile InboundBuffer mInbox = null;
+
     public FemaleChannel(Thing thing, String key, DataType dtype, int dim) {
         super(thing, key, Gender.FEMALE, dtype, dim);
     }
@@ -13,109 +28,176 @@ public abstract class FemaleChannel extends Channel {
         super(thing, key, Gender.FEMALE, dtype);
     }
 
-    protected abstract void perform(int src, int gid, Object[] data);
+    public FemaleChannel(Thing thing, String key, ChannelCodec codec, int dim) {
+        super(thing, key, Gender.FEMALE, codec, dim);
+    }
 
-    public void handlePacket(final byte[] payload) {
-        // decode packet
-        ByteBuffer bf = ByteBuffer.wrap(payload);
-
-        int src = 0, gid = 0;
-        final int n = getDataDim();
-        Object[] arr = new Object[n];
-
-        switch (getDataType()) {
-            case BYTE:
-                for (int i = 0; i < n; i++) {
-                    try {
-                        arr[i] = bf.get();
-                    } catch (BufferUnderflowException e) {
-                        arr[i] = '\0';
-                    }
-                }
-                break;
-
-            case INT32:
-                for (int i = 0; i < n; i++) {
-                    try {
-                        arr[i] = bf.getInt();
-                    } catch (BufferUnderflowException e) {
-                        arr[i] = Integer.valueOf(0);
-                    }
-                }
-                break;
-
-            case INT16:
-                for (int i = 0; i < n; i++) {
-                    try {
-                        arr[i] = bf.getShort();
-                    } catch (BufferUnderflowException e) {
-                        arr[i] = Short.valueOf((short) 0);
-                    }
-                }
-                break;
-
-            case INT64:
-                for (int i = 0; i < n; i++) {
-                    try {
-                        arr[i] = bf.getLong();
-                    } catch (BufferUnderflowException e) {
-                        arr[i] = 0L;
-                    }
-                }
-                break;
-
-            case STRING:
-                for (int i = 0; i < n; i++) {
-                    if (bf.get() == '\0') {
-                        arr[i] = "";
-                    } else {
-                        try {
-                            int start = bf.position();
-                            int cnt = 0;
-                            while (bf.get() != '\0') {
-                                cnt++;
-                            }
-                            byte[] ss = new byte[cnt];
-                            bf.get(ss, start, cnt);
-                            arr[i] = new String(ss);
-                        } catch (BufferUnderflowException e) {
-                            arr[i] = "";
-                        }
-                    }
-                }
-                break;
-
-            case FLOAT:
-                for (int i = 0; i < n; i++) {
-                    try {
-                        arr[i] = bf.getFloat();
-                    } catch (BufferUnderflowException e) {
-                        arr[i] = Float.valueOf(0);
-                    }
-                }
-                break;
-
-            case BOOL:
-                for (int i = 0; i < n; i++) {
-                    try {
-                        arr[i] = bf.get() != 0;
-                    } catch (BufferUnderflowException e) {
-                        arr[i] = false;
-                    }
+    // packets of this channel buffered while waiting for dispatch, 0 for no own limit
+    // (the lane's ring then holds back the mqtt thread when dispatch is too slow).
+    // segments of a thing's frames are buffered here too, one packet each
+    public int getInboundCapacity() {
+        return 0;
+    }
+
+    // what to drop when the inbound buffer is full, CONFLATE keeps only the latest packet
+    public OutboundQueue.DropPolicy getInboundPolicy() {
+        return OutboundQueue.DropPolicy.DROP_OLDEST;
+    }
+
+    public int getInboundPending() {
+        InboundBuffer b = mInbox;
+        return b == null ? 0 : b.size();
+    }
+
+    // number of packets dropped by the given policy
+    public long getInboundDropped(OutboundQueue.DropPolicy policy) {
+        InboundBuffer b = mInbox;
+        return b == null ? 0 : b.getDropped(policy);
+    }
+
+    // inbound buffer, null if channel has no capacity of its own
+    InboundBuffer inbox() {
+        InboundBuffer b = mInbox;
+        if (b == null) {
+            int cap = getInboundCapacity();
+            if (cap <= 0)
+                return null;
+            synchronized (this) {
+                b = mInbox;
+                if (b == null) {
+                    b = new InboundBuffer(cap, getInboundPolicy());
+                    mInbox = b;
                 }
-                break;
-
-            case RAW:
-                int p = bf.position();
-                byte[] buf = new byte[payload.length - p];
-                bf.get(buf, p, payload.length - p);
-                arr = new Byte[buf.length];
-                for (int i = 0; i < arr.length; i++)
-                    arr[i] = buf[i];
-                break;
+            }
         }
+        return b;
+    }
+
+    // generic handler, receives boxed values of any datatype
+    protected abstract void perform(int src, int gid, Object[] data);
+
+    //
+    // typed handlers, override the one matching channel's datatype to receive packets
+    // without boxing. the array is reused for next packet, copy values to keep them.
+    // elements missing from a short packet are zero.
+    //
+    protected void performBytes(int src, int gid, byte[] data) {
+        Object[] arr = new Object[data.length];
+        for (int i = 0; i < data.length; i++)
+            arr[i] = data[i];
+        perform(src, gid, arr);
+    }
 
+    protected void performShorts(int src, int gid, short[] data) {
+        Object[] arr = new Object[data.length];
+        for (int i = 0; i < data.length; i++)
+            arr[i] = data[i];
         perform(src, gid, arr);
     }
 
+    protected void performInts(int src, int gid, int[] data) {
+        Object[] arr = new Object[data.length];
+        for (int i = 0; i < data.length; i++)
+            arr[i] = data[i];
+        perform(src, gid, arr);
+    }
+
+    protected void performLongs(int src, int gid, long[] data) {
+        Object[] arr = new Object[data.length];
+        for (int i = 0; i < data.length; i++)
+            arr[i] = data[i];
+        perform(src, gid, arr);
+    }
+
+    protected void performFloats(int src, int gid, float[] data) {
+        Object[] arr = new Object[data.length];
+        for (int i = 0; i < data.length; i++)
+            arr[i] = data[i];
+        perform(src, gid, arr);
+    }
+
+    protected void performBools(int src, int gid, boolean[] data) {
+        Object[] arr = new Object[data.length];
+        for (int i = 0; i < data.length; i++)
+            arr[i] = data[i];
+        perform(src, gid, arr);
+    }
+
+    protected void performStrings(int src, int gid, String[] data) {
+        perform(src, gid, data.clone());
+    }
+
+    // RAW packet as a read-only view on the payload, valid during the call only
+    protected void performRaw(int src, int gid, ByteBuffer data) {
+        Object[] arr = new Byte[data.remaining()];
+        for (int i = 0; i < arr.length; i++)
+            arr[i] = data.get(data.position() + i);
+        perform(src, gid, arr);
+    }
+
+    // called with a whole block of samples, times are in ms since epoch.
+    // by default every sample is passed to perform() in order
+    protected void performBlock(int src, int gid, long[] times, Object[][] samples) {
+        for (Object[] s : samples)
+            perform(src, gid, s);
+    }
+
+    public void handleBlock(final byte[] payload) {
+        if (payload == null || payload.length == 0)
+            return;
+
+        SampleBlock.Decoded blk = SampleBlock.decode(getCodec(), getDataDim(), payload, 0, payload.length);
+        if (blk == null) {
+            Log.w("nodewox/channel", "malformed sample block");
+            return;
+        }
+        performBlock(0, 0, blk.times, blk.samples);
+    }
+
+    public void handlePacket(final byte[] payload) {
+        handlePacket(payload, 0, payload == null ? 0 : payload.length);
+    }
+
+    // decode packet at payload[offset, offset+length), e.g. a segment of a multiplexed frame
+    public void handlePacket(final byte[] payload, int offset, int length) {
+        ByteBuffer bf = (payload == null || length <= 0) ? EMPTY : ByteBuffer.wrap(payload, offset, length);
+        getCodec().deliver(this, 0, 0, bf);
+    }
+
+    // decode arrays for codecs
+    byte[] byteArray() {
+        if (mBytes == null) mBytes = new byte[getDataDim()];
+        return mBytes;
+    }
+
+    short[] shortArray() {
+        if (mShorts == null) mShorts = new short[getDataDim()];
+        return mShorts;
+    }
+
+    int[] intArray() {
+        if (mInts == null) mInts = new int[getDataDim()];
+        return mInts;
+    }
+
+    long[] longArray() {
+        if (mLongs == null) mLongs = new long[getDataDim()];
+        return mLongs;
+    }
+
+    float[] floatArray() {
+        if (mFloats == null) mFloats = new float[getDataDim()];
+        return mFloats;
+    }
+
+    boolean[] boolArray() {
+        if (mBools == null) mBools = new boolean[getDataDim()];
+        return mBools;
+    }
+
+    String[] stringArray() {
+        if (mStrings == null) mStrings = new String[getDataDim()];
+        return mStrings;
+    }
+
 }
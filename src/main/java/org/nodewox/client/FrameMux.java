@@ -0,0 +1,144 @@
+package org.nodewox.client;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+//
+// multiplexed frame of channel packets, a frame is a sequence of segments
+// [varint channel-id][varint length][packet]
+//
+public class FrameMux {
+
+    private byte[] mBuf;
+    private int mLen = 0;
+    private int mCount = 0;
+
+    public FrameMux(int capacity) {
+        mBuf = new byte[Math.max(capacity, 16)];
+    }
+
+    public int size() {
+        return mLen;
+    }
+
+    public int count() {
+        return mCount;
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    public static int segmentSize(int id, int len) {
+        return Varint.size(id) + Varint.size(len) + len;
+    }
+
+    public void add(int id, byte[] packet) {
+        int len = packet == null ? 0 : packet.length;
+        int need = mLen + segmentSize(id, len);
+        if (need > mBuf.length) {
+            byte[] nb = new byte[Math.max(need, mBuf.length * 2)];
+            System.arraycopy(mBuf, 0, nb, 0, mLen);
+            mBuf = nb;
+        }
+
+        mLen = Varint.put(mBuf, mLen, id);
+        mLen = Varint.put(mBuf, mLen, len);
+        if (len > 0) {
+            System.arraycopy(packet, 0, mBuf, mLen, len);
+            mLen += len;
+        }
+        mCount++;
+    }
+
+    // return frame content and reset
+    public byte[] take() {
+        byte[] res = new byte[mLen];
+        System.arraycopy(mBuf, 0, res, 0, mLen);
+        mLen = 0;
+        mCount = 0;
+        return res;
+    }
+
+    // split a frame into segments, return false if frame is malformed
+    public static boolean demux(byte[] frame, SegmentHandler handler) {
+        if (frame == null)
+            return true;
+
+        int pos = 0;
+        while (pos < frame.length) {
+            long v = Varint.get(frame, pos, frame.length);
+            if (v < 0) return false;
+            int id = (int) v;
+            pos += Varint.size(id);
+
+            v = Varint.get(frame, pos, frame.length);
+            if (v < 0) return false;
+            int len = (int) v;
+            pos += Varint.size(len);
+
+            if (len > frame.length - pos)
+                return false;
+
+            handler.onSegment(id, frame, pos, len);
+            pos += len;
+        }
+        return true;
+    }
+
+    // deflate a frame, null if that doesn't make it smaller
+    public static byte[] compress(byte[] frame) {
+        if (frame == null || frame.length == 0)
+            return null;
+
+        Deflater d = new Deflater(Deflater.BEST_SPEED);
+        try {
+            d.setInput(frame);
+            d.finish();
+            byte[] out = new byte[frame.length];
+            int n = 0;
+            while (!d.finished() && n < out.length)
+                n += d.deflate(out, n, out.length - n);
+            if (!d.finished() || n >= frame.length)
+                return null;
+
+            byte[] res = new byte[n];
+            System.arraycopy(out, 0, res, 0, n);
+            return res;
+        } finally {
+            d.end();
+        }
+    }
+
+    // inflate a compressed frame, null if it is malformed or inflates beyond max bytes
+    public static byte[] decompress(byte[] data, int max) {
+        if (data == null)
+            return null;
+
+        Inflater inf = new Inflater();
+        try {
+            inf.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(data.length * 4, max));
+            byte[] buf = new byte[1024];
+            while (!inf.finished()) {
+                int n = inf.inflate(buf);
+                if (n == 0 && (inf.needsInput() || inf.needsDictionary()))
+                    return null;
+                if (out.size() + n > max)
+                    return null;
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inf.end();
+        }
+    }
+
+    public interface SegmentHandler {
+        void onSegment(int id, byte[] buf, int offset, int length);
+    }
+}
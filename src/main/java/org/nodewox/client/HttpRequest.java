@@ -78,9 +78,9 @@ public class HttpRequest {
 
         if (u.getProtocol().equals("https")) {
             byte[] ca = getCA();
-            SSLSocketFactory sslf = Utils.makeSSLSocketFactory(ca, getCAPass(), mClientCert, mClientCertPass);
+            SSLSocketFactory sslf = Utils.getSSLSocketFactory(ca, getCAPass(), mClientCert, mClientCertPass);
             if (sslf != null) {
-                req.setSSLSocketFactory(sslf);
+                req.setSSLSocketFactory(new TlsSocketFactory(sslf, TlsSocketFactory.REST));
                 if (ca != null && ca.length > 0) {
                     req.setHostnameVerifier(new HostnameVerifier() {
                         public boolean verify(String hostname, SSLSession session) {
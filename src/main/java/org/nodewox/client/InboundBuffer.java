@@ -0,0 +1,108 @@
+package org.nodewox.client;
+
+//
+// bounded buffer of packets received for one female channel, filled on the mqtt
+// callback thread and drained on its dispatch lane. a channel is queued on the
+// lane at most once while its buffer has data.
+//
+final class InboundBuffer {
+
+    private final byte[][] mPayloads;
+    private final boolean[] mBlocks;
+    private final OutboundQueue.DropPolicy mPolicy;
+    private int mHead = 0;
+    private int mSize = 0;
+    private boolean mScheduled = false;
+
+    // dropped packets per policy, indexed by DropPolicy.ordinal()
+    private final long[] mDropped = new long[OutboundQueue.DropPolicy.values().length];
+
+    InboundBuffer(int capacity, OutboundQueue.DropPolicy policy) {
+        mPayloads = new byte[Math.max(capacity, 1)][];
+        mBlocks = new boolean[mPayloads.length];
+        mPolicy = policy;
+    }
+
+    // add a packet, return true if the channel must be queued on its lane
+    synchronized boolean offer(byte[] payload, boolean block) {
+        int cap = mPayloads.length;
+
+        if (mPolicy == OutboundQueue.DropPolicy.CONFLATE) {
+            // keep only the latest packet of each kind
+            for (int i = 0; i < mSize; i++) {
+                int k = (mHead + i) % cap;
+                if (mBlocks[k] == block) {
+                    mPayloads[k] = payload;
+                    mDropped[mPolicy.ordinal()]++;
+                    return schedule();
+                }
+            }
+        }
+
+        if (mSize == cap) {
+            if (mPolicy == OutboundQueue.DropPolicy.DROP_NEWEST) {
+                mDropped[mPolicy.ordinal()]++;
+                return false;
+            }
+            // DROP_OLDEST, or CONFLATE with a buffer of 1
+            mPayloads[mHead] = null;
+            mHead = (mHead + 1) % cap;
+            mSize--;
+            mDropped[mPolicy.ordinal()]++;
+        }
+
+        int k = (mHead + mSize) % cap;
+        mPayloads[k] = payload;
+        mBlocks[k] = block;
+        mSize++;
+        return schedule();
+    }
+
+    private boolean schedule() {
+        if (mScheduled)
+            return false;
+        mScheduled = true;
+        return true;
+    }
+
+    // deliver buffered packets to ch, called on the dispatch lane.
+    // return true if packets are left and the channel must be queued again
+    boolean drain(FemaleChannel ch) {
+        int n = mPayloads.length;
+        while (n-- > 0) {
+            byte[] payload;
+            boolean block;
+            synchronized (this) {
+                if (mSize == 0) {
+                    mScheduled = false;
+                    return false;
+                }
+                payload = mPayloads[mHead];
+                block = mBlocks[mHead];
+                mPayloads[mHead] = null;
+                mHead = (mHead + 1) % mPayloads.length;
+                mSize--;
+            }
+
+            if (block)
+                ch.handleBlock(payload);
+            else
+                ch.handlePacket(payload);
+        }
+
+        // more arrived meanwhile, stay scheduled
+        synchronized (this) {
+            if (mSize == 0)
+                mScheduled = false;
+            return mScheduled;
+        }
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    synchronized long getDropped(OutboundQueue.DropPolicy policy) {
+        return mDropped[policy.ordinal()];
+    }
+}
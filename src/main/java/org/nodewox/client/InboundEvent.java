@@ -0,0 +1,39 @@
+package org.nodewox.client;
+
+// an mqtt message carried from the callback thread to the dispatcher, slots are reused
+final class InboundEvent {
+
+    String topic;
+    byte[] payload;
+    int qos;
+    boolean duplicate;
+    boolean retained;
+
+    // set instead of a message when the channel's inbound buffer has packets
+    FemaleChannel channel;
+
+    void set(String topic, byte[] payload, int qos, boolean duplicate, boolean retained) {
+        this.topic = topic;
+        this.payload = payload;
+        this.qos = qos;
+        this.duplicate = duplicate;
+        this.retained = retained;
+    }
+
+    void set(FemaleChannel channel) {
+        this.channel = channel;
+    }
+
+    void clear() {
+        topic = null;
+        payload = null;
+        channel = null;
+    }
+
+    static MpscRing<InboundEvent> newRing(int size) {
+        InboundEvent[] slots = new InboundEvent[MpscRing.sizeFor(size)];
+        for (int i = 0; i < slots.length; i++)
+            slots[i] = new InboundEvent();
+        return new MpscRing<>(slots);
+    }
+}
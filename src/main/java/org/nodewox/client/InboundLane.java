@@ -0,0 +1,154 @@
+package org.nodewox.client;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+//
+// one ordered lane of inbound dispatch: a ring of reused events fed by the mqtt
+// callback thread and drained by a handler on the lane's looper. the handler is
+// woken by one message while the ring has data.
+//
+final class InboundLane extends Handler implements FrameMux.SegmentHandler {
+
+    private static final int MSG_DRAIN = 1;
+    private static final int BATCH = 64;
+    private static final long PARK_NANOS = 10 * 1000 * 1000;
+
+    private final Messenger mMessenger;
+    private final MpscRing<InboundEvent> mRing;
+    private final AtomicBoolean mWake = new AtomicBoolean(false);
+
+    // producer parked while the ring is full
+    private volatile Thread mWaiter = null;
+
+    // channels with packets left after their turn, touched on the lane's thread only
+    private final ArrayDeque<FemaleChannel> mAgain = new ArrayDeque<>();
+
+    // node whose children receive segments of the frame being demultiplexed
+    Node frameTarget = null;
+
+    InboundLane(Looper looper, Messenger messenger, int size) {
+        super(looper);
+        mMessenger = messenger;
+        mRing = InboundEvent.newRing(size);
+    }
+
+    int pending() {
+        return mRing.size();
+    }
+
+    // called on mqtt callback thread, parks while the ring is full
+    void offer(String topic, byte[] payload, int qos, boolean dup, boolean retained) {
+        long pos = claim();
+        mRing.get(pos).set(topic, payload, qos, dup, retained);
+        mRing.publish(pos);
+        wake();
+    }
+
+    // queue a channel whose inbound buffer just got data
+    void offer(FemaleChannel ch) {
+        long pos = claim();
+        mRing.get(pos).set(ch);
+        mRing.publish(pos);
+        wake();
+    }
+
+    // wait parked for a free slot. drain() unparks the waiting thread as it frees slots,
+    // the timeout covers a second producer, e.g. the new client during a handover
+    private long claim() {
+        long pos = mRing.claim();
+        if (pos >= 0)
+            return pos;
+
+        Thread me = Thread.currentThread();
+        try {
+            while (true) {
+                mWaiter = me;
+                // check again once visible as waiter, drain() may have freed slots meanwhile
+                pos = mRing.claim();
+                if (pos >= 0)
+                    return pos;
+                wake();
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+        } finally {
+            mWaiter = null;
+        }
+    }
+
+    private void wake() {
+        if (mWake.compareAndSet(false, true))
+            sendMessage(obtainMessage(MSG_DRAIN));
+    }
+
+    // process a batch of events, yield the looper between batches
+    private void drain() {
+        mWake.set(false);
+
+        for (int n = mAgain.size(); n > 0; n--)
+            drainChannel(mAgain.pollFirst());
+
+        for (int n = 0; n < BATCH; n++) {
+            long pos = mRing.peek();
+            if (pos < 0)
+                break;
+
+            InboundEvent e = mRing.get(pos);
+            FemaleChannel ch = e.channel;
+            try {
+                if (ch == null)
+                    mMessenger.processMessage(this, e.topic, e.payload, e.qos, e.duplicate, e.retained);
+            } finally {
+                e.clear();
+                mRing.release(pos);
+                Thread w = mWaiter;
+                if (w != null)
+                    LockSupport.unpark(w);
+            }
+
+            if (ch != null)
+                drainChannel(ch);
+        }
+
+        if (!mAgain.isEmpty() || mRing.peek() >= 0)
+            wake();
+    }
+
+    private void drainChannel(FemaleChannel ch) {
+        if (ch.inbox().drain(ch))
+            mAgain.addLast(ch);
+    }
+
+    @Override
+    public void handleMessage(Message msg) {
+        if (msg.what == MSG_DRAIN)
+            drain();
+    }
+
+    // called on the lane's thread while a frame is processed. a channel with its own
+    // buffer gets a copy of the segment like any other packet, queued on mAgain as
+    // offering to the ring could wait on this very thread
+    @Override
+    public void onSegment(int id, byte[] buf, int offset, int length) {
+        Node n = frameTarget.findNode(id);
+        if (!(n instanceof FemaleChannel))
+            return;
+
+        FemaleChannel ch = (FemaleChannel) n;
+        InboundBuffer inbox = ch.inbox();
+        if (inbox == null) {
+            ch.handlePacket(buf, offset, length);
+            return;
+        }
+
+        byte[] copy = new byte[length];
+        System.arraycopy(buf, offset, copy, 0, length);
+        if (inbox.offer(copy, false))
+            mAgain.addLast(ch);
+    }
+}
@@ -0,0 +1,189 @@
+package org.nodewox.client;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+//
+// limits publishes handed to the mqtt client but not yet completed, per qos level.
+// messages over the window wait in a pending queue, in order per priority and qos,
+// and are refused once the pending queue of their priority is full.
+//
+// bulk messages leave `reserve` slots of every window to control messages, and
+// pending control messages go first: always (weight 0), or weight control
+// messages for each bulk one.
+//
+final class InflightWindow {
+
+    static final int SEND = 0;    // slot acquired, send now
+    static final int QUEUED = 1;  // window full, message is pending
+    static final int FULL = 2;    // window and pending queue full, message refused
+
+    private static final int CONTROL = 0;
+    private static final int BULK = 1;
+
+    private final int[] mLimits = new int[3];
+    private final int mReserve;
+    private final int mWeight;
+    private final int[] mInflight = new int[3];
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Pending>[][] mPending = new ArrayDeque[2][3];
+    private final int mPendingLimit;
+    private final int[] mPendingCount = new int[2];
+    private int mControlRun = 0;  // control messages sent since the last bulk one
+    private boolean mBlocked = false;
+
+    InflightWindow(int qos0, int qos1, int qos2, int pendingLimit, int reserve, int weight) {
+        mLimits[0] = Math.max(qos0, 1);
+        mLimits[1] = Math.max(qos1, 1);
+        mLimits[2] = Math.max(qos2, 1);
+        for (int p = 0; p < 2; p++) {
+            for (int q = 0; q < 3; q++)
+                mPending[p][q] = new ArrayDeque<>();
+        }
+        mPendingLimit = Math.max(pendingLimit, 0);
+        mReserve = Math.max(reserve, 0);
+        mWeight = Math.max(weight, 0);
+    }
+
+    private static int prio(Messenger.Priority priority) {
+        return priority == Messenger.Priority.BULK ? BULK : CONTROL;
+    }
+
+    private int limit(int p, int q) {
+        return p == CONTROL ? mLimits[q] : Math.max(mLimits[q] - mReserve, 1);
+    }
+
+    private boolean sendable(int p, int q) {
+        return !mPending[p][q].isEmpty() && mInflight[q] < limit(p, q);
+    }
+
+    private static int level(int qos) {
+        return qos < 0 ? 0 : (qos > 2 ? 2 : qos);
+    }
+
+    synchronized int admit(Messenger.Priority priority, String topic, byte[] payload, int qos, boolean retained,
+                           Serializable ctx, DeliveryToken token) {
+        int p = prio(priority);
+        int q = level(qos);
+        boolean ahead = !mPending[p][q].isEmpty() || (p == BULK && !mPending[CONTROL][q].isEmpty());
+        if (!ahead && mInflight[q] < limit(p, q)) {
+            mInflight[q]++;
+            return SEND;
+        }
+        if (mPendingCount[p] >= mPendingLimit)
+            return FULL;
+
+        mPending[p][q].addLast(new Pending(priority, topic, payload, qos, retained, ctx, token));
+        mPendingCount[p]++;
+        return QUEUED;
+    }
+
+    // whether a message of priority and qos would be sent at once
+    synchronized boolean hasRoom(Messenger.Priority priority, int qos) {
+        int p = prio(priority);
+        int q = level(qos);
+        if (!mPending[p][q].isEmpty() || (p == BULK && !mPending[CONTROL][q].isEmpty()))
+            return false;
+        return mInflight[q] < limit(p, q);
+    }
+
+    // take a pending message whose window has room, acquiring its slot
+    synchronized Pending next() {
+        boolean ctl = mWeight == 0 || mControlRun < mWeight;
+        Pending res = ctl ? take(CONTROL) : take(BULK);
+        if (res == null)
+            res = ctl ? take(BULK) : take(CONTROL);
+        return res;
+    }
+
+    private Pending take(int p) {
+        for (int q = 0; q < 3; q++) {
+            if (sendable(p, q)) {
+                mInflight[q]++;
+                mPendingCount[p]--;
+                mControlRun = (p == CONTROL) ? mControlRun + 1 : 0;
+                return mPending[p][q].pollFirst();
+            }
+        }
+        return null;
+    }
+
+    synchronized void release(int qos) {
+        int q = level(qos);
+        if (mInflight[q] > 0)
+            mInflight[q]--;
+    }
+
+    // forget in-flight messages of a previous connection
+    synchronized void reset() {
+        for (int q = 0; q < 3; q++)
+            mInflight[q] = 0;
+    }
+
+    synchronized List<Pending> takePending() {
+        List<Pending> res = new ArrayList<>(mPendingCount[CONTROL] + mPendingCount[BULK]);
+        for (int p = 0; p < 2; p++) {
+            for (int q = 0; q < 3; q++) {
+                res.addAll(mPending[p][q]);
+                mPending[p][q].clear();
+            }
+            mPendingCount[p] = 0;
+        }
+        return res;
+    }
+
+    // return true if window just became blocked
+    synchronized boolean markBlocked() {
+        if (mBlocked)
+            return false;
+        mBlocked = true;
+        return true;
+    }
+
+    // return true if window was blocked and nothing is pending any more
+    synchronized boolean markOpen() {
+        if (!mBlocked || mPendingCount[CONTROL] + mPendingCount[BULK] > 0)
+            return false;
+        mBlocked = false;
+        return true;
+    }
+
+    synchronized int getInflight(int qos) {
+        return mInflight[level(qos)];
+    }
+
+    synchronized int getPending() {
+        return mPendingCount[CONTROL] + mPendingCount[BULK];
+    }
+
+    synchronized int getPending(Messenger.Priority priority) {
+        return mPendingCount[prio(priority)];
+    }
+
+    int getLimit(int qos) {
+        return mLimits[level(qos)];
+    }
+
+    static final class Pending {
+        final Messenger.Priority priority;
+        final String topic;
+        final byte[] payload;
+        final int qos;
+        final boolean retained;
+        final Serializable ctx;
+        final DeliveryToken token;
+
+        Pending(Messenger.Priority priority, String topic, byte[] payload, int qos, boolean retained,
+                Serializable ctx, DeliveryToken token) {
+            this.priority = priority;
+            this.topic = topic;
+            this.payload = payload;
+            this.qos = qos;
+            this.retained = retained;
+            this.ctx = ctx;
+            this.token = token;
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package org.nodewox.client;
+
+import android.util.Log;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+//
+// mqtt persistence backed by one append-only, memory-mapped journal file.
+//
+// every put/remove appends a record, an in-memory index maps each key to its latest
+// record. dirty pages of the mapping belong to the kernel, so records survive the
+// process being killed without a fsync per message. the journal is compacted once
+// dead records outweigh live ones.
+//
+// record: [type:1][length:4][crc32:4][keylen:2][key][hdrlen:4][hdr][paylen:4][payload]
+// the type byte is written last, and the byte after every record is kept at REC_END,
+// so a record torn by process death reads as the end of journal on replay.
+//
+public class JournalPersistence implements MqttClientPersistence {
+
+    private static final byte REC_END = 0;
+    private static final byte REC_PUT = 1;
+    private static final byte REC_REMOVE = 2;
+
+    private static final int REC_HEAD = 1 + 4 + 4;
+    private static final int MIN_MAP_SIZE = 64 * 1024;
+    private static final int COMPACT_MIN_GARBAGE = 32 * 1024;
+
+    private final File mDir;
+
+    private File mFile = null;
+    private RandomAccessFile mRaf = null;
+    private MappedByteBuffer mMap = null;
+
+    // key -> offset of latest PUT record
+    private final HashMap<String, Integer> mIndex = new HashMap<>();
+    private int mTail = 0;       // append position
+    private int mLiveBytes = 0;  // bytes of records still referenced by index
+
+    private final CRC32 mCrc = new CRC32();
+    private byte[] mScratch = new byte[512];
+
+    public JournalPersistence(File dir) {
+        mDir = dir;
+    }
+
+    public int getJournalSize() {
+        return mTail;
+    }
+
+    public int getLiveSize() {
+        return mLiveBytes;
+    }
+
+    @Override
+    public synchronized void open(String clientId, String serverURI) throws MqttPersistenceException {
+        if (mMap != null)
+            return;
+
+        if (!mDir.exists() && !mDir.mkdirs())
+            throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+
+        String name = sanitize(clientId) + "-" + sanitize(serverURI);
+        mFile = new File(mDir, name + ".journal");
+
+        // a leftover from an interrupted compaction, the journal itself is still intact
+        File tmp = new File(mDir, name + ".compact");
+        if (tmp.exists() && !tmp.delete())
+            Log.w("nodewox/persistence", "cannot remove " + tmp);
+
+        try {
+            mapFile(mFile, 0);
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+
+        replay();
+    }
+
+    @Override
+    public synchronized void close() throws MqttPersistenceException {
+        if (mMap == null)
+            return;
+
+        mMap.force();
+        unmapFile();
+        mIndex.clear();
+        mTail = 0;
+        mLiveBytes = 0;
+    }
+
+    @Override
+    public synchronized void put(String key, MqttPersistable msg) throws MqttPersistenceException {
+        checkOpen();
+
+        byte[] k = keyBytes(key);
+        int hlen = msg.getHeaderBytes() == null ? 0 : msg.getHeaderLength();
+        int plen = msg.getPayloadBytes() == null ? 0 : msg.getPayloadLength();
+        int size = REC_HEAD + 2 + k.length + 4 + hlen + 4 + plen;
+
+        ensureCapacity(size);
+
+        int off = mTail;
+        mMap.position(off + REC_HEAD);
+        mMap.putShort((short) k.length);
+        mMap.put(k);
+        mMap.putInt(hlen);
+        if (hlen > 0)
+            mMap.put(msg.getHeaderBytes(), msg.getHeaderOffset(), hlen);
+        mMap.putInt(plen);
+        if (plen > 0)
+            mMap.put(msg.getPayloadBytes(), msg.getPayloadOffset(), plen);
+        commit(off, REC_PUT, size);
+
+        Integer old = mIndex.put(key, off);
+        if (old != null)
+            mLiveBytes -= recordSize(old);
+        mLiveBytes += size;
+    }
+
+    @Override
+    public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+        checkOpen();
+
+        Integer off = mIndex.get(key);
+        if (off == null)
+            return null;
+
+        mMap.position(off + REC_HEAD);
+        int klen = mMap.getShort() & 0xffff;
+        mMap.position(mMap.position() + klen);
+
+        byte[] hdr = new byte[mMap.getInt()];
+        mMap.get(hdr);
+        byte[] payload = new byte[mMap.getInt()];
+        mMap.get(payload);
+
+        return new MqttPersistentData(key, hdr, 0, hdr.length, payload, 0, payload.length);
+    }
+
+    @Override
+    public synchronized void remove(String key) throws MqttPersistenceException {
+        checkOpen();
+
+        Integer old = mIndex.remove(key);
+        if (old == null)
+            return;
+        mLiveBytes -= recordSize(old);
+
+        byte[] k = keyBytes(key);
+        int size = REC_HEAD + 2 + k.length;
+        ensureCapacity(size);
+
+        int off = mTail;
+        mMap.position(off + REC_HEAD);
+        mMap.putShort((short) k.length);
+        mMap.put(k);
+        commit(off, REC_REMOVE, size);
+    }
+
+    @Override
+    public synchronized Enumeration keys() throws MqttPersistenceException {
+        checkOpen();
+        return Collections.enumeration(new ArrayList<>(mIndex.keySet()));
+    }
+
+    @Override
+    public synchronized void clear() throws MqttPersistenceException {
+        checkOpen();
+        mIndex.clear();
+        mLiveBytes = 0;
+        mTail = 0;
+        mMap.put(0, REC_END);
+    }
+
+    @Override
+    public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+        checkOpen();
+        return mIndex.containsKey(key);
+    }
+
+    private void checkOpen() throws MqttPersistenceException {
+        if (mMap == null)
+            throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_CLIENT_NOT_CONNECTED);
+    }
+
+    // fill crc and type of a record whose body is already written at off
+    private void commit(int off, byte type, int size) {
+        int crc = checksum(off + REC_HEAD, off + size);
+        mMap.put(off + size, REC_END);
+        mMap.putInt(off + 1, size);
+        mMap.putInt(off + 5, crc);
+        mMap.put(off, type);
+        mTail = off + size;
+    }
+
+    private int checksum(int from, int to) {
+        mCrc.reset();
+        while (from < to) {
+            int n = Math.min(to - from, mScratch.length);
+            mMap.position(from);
+            mMap.get(mScratch, 0, n);
+            mCrc.update(mScratch, 0, n);
+            from += n;
+        }
+        return (int) mCrc.getValue();
+    }
+
+    private int recordSize(int off) {
+        return mMap.getInt(off + 1);
+    }
+
+    // make room for a record of size bytes plus the end marker behind it
+    private void ensureCapacity(int size) throws MqttPersistenceException {
+        if (mTail + size + 1 <= mMap.capacity())
+            return;
+
+        int garbage = mTail - mLiveBytes;
+        try {
+            if (garbage >= COMPACT_MIN_GARBAGE && garbage > mLiveBytes)
+                compact(mLiveBytes + size + 1);
+
+            if (mTail + size + 1 > mMap.capacity()) {
+                long want = Math.max((long) mMap.capacity() * 2, (long) mTail + size + 1);
+                if (want > Integer.MAX_VALUE)
+                    throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+                mMap.force();
+                unmapFile();
+                mapFile(mFile, (int) want);
+            }
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    // copy live records into a fresh journal and swap it in
+    private void compact(int need) throws IOException {
+        File tmp = new File(mFile.getPath().replaceFirst("\\.journal$", ".compact"));
+        int cap = Math.max(MIN_MAP_SIZE, Integer.highestOneBit(Math.max(need, 1)) << 1);
+
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(cap);
+            MappedByteBuffer dst = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, cap);
+
+            int pos = 0;
+            for (Map.Entry<String, Integer> item : mIndex.entrySet()) {
+                int off = item.getValue();
+                int size = recordSize(off);
+                if (mScratch.length < size)
+                    mScratch = new byte[Integer.highestOneBit(size) << 1];
+                mMap.position(off);
+                mMap.get(mScratch, 0, size);
+                dst.position(pos);
+                dst.put(mScratch, 0, size);
+                item.setValue(pos);
+                pos += size;
+            }
+            dst.put(pos, REC_END);
+            dst.force();
+        } finally {
+            raf.close();
+        }
+
+        unmapFile();
+        if (!tmp.renameTo(mFile) && !(mFile.delete() && tmp.renameTo(mFile)))
+            throw new IOException("cannot replace " + mFile);
+        mapFile(mFile, 0);
+
+        mTail = mLiveBytes;
+        Log.v("nodewox/persistence", "journal compacted to " + mTail + " bytes");
+    }
+
+    private void mapFile(File f, int size) throws IOException {
+        mRaf = new RandomAccessFile(f, "rw");
+        long len = Math.max(Math.max(mRaf.length(), size), MIN_MAP_SIZE);
+        if (len > Integer.MAX_VALUE)
+            len = Integer.MAX_VALUE;
+        if (mRaf.length() < len)
+            mRaf.setLength(len);  // extended region reads as zero, i.e. REC_END
+        mMap = mRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, len);
+    }
+
+    private void unmapFile() {
+        try {
+            mRaf.close();
+        } catch (IOException e) {
+            Log.w("nodewox/persistence", "close journal: " + e.getMessage());
+        }
+        mRaf = null;
+        mMap = null;
+    }
+
+    // rebuild index from journal, stop at end marker or first broken record
+    private void replay() {
+        mIndex.clear();
+        mLiveBytes = 0;
+
+        int off = 0;
+        int cap = mMap.capacity();
+        while (off + REC_HEAD <= cap) {
+            byte type = mMap.get(off);
+            if (type != REC_PUT && type != REC_REMOVE)
+                break;
+
+            int size = mMap.getInt(off + 1);
+            if (size < REC_HEAD + 2 || off + size > cap)
+                break;
+
+            if (checksum(off + REC_HEAD, off + size) != mMap.getInt(off + 5))
+                break;
+
+            int klen = mMap.getShort(off + REC_HEAD) & 0xffff;
+            byte[] k = new byte[klen];
+            for (int i = 0; i < klen; i++)
+                k[i] = mMap.get(off + REC_HEAD + 2 + i);
+            String key = keyString(k);
+
+            Integer old = (type == REC_PUT) ? mIndex.put(key, off) : mIndex.remove(key);
+            if (old != null)
+                mLiveBytes -= recordSize(old);
+            if (type == REC_PUT)
+                mLiveBytes += size;
+
+            off += size;
+        }
+
+        mTail = off;
+        if (off < cap)
+            mMap.put(off, REC_END);
+
+        if (!mIndex.isEmpty())
+            Log.v("nodewox/persistence", "restored " + mIndex.size() + " in-flight messages");
+
+        if (mTail - mLiveBytes >= COMPACT_MIN_GARBAGE && mTail - mLiveBytes > mLiveBytes) {
+            try {
+                compact(mLiveBytes + 1);
+            } catch (IOException e) {
+                Log.w("nodewox/persistence", "compact journal: " + e.getMessage());
+            }
+        }
+    }
+
+    private static String sanitize(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            sb.append(Character.isLetterOrDigit(c) ? c : '-');
+        }
+        return sb.toString();
+    }
+
+    private static byte[] keyBytes(String key) {
+        try {
+            return key.getBytes("utf-8");
+        } catch (UnsupportedEncodingException e) {
+            return key.getBytes();
+        }
+    }
+
+    private static String keyString(byte[] k) {
+        try {
+            return new String(k, "utf-8");
+        } catch (UnsupportedEncodingException e) {
+            return new String(k);
+        }
+    }
+}
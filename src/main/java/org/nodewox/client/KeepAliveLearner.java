@@ -0,0 +1,215 @@
+package org.nodewox.client;
+
+import java.util.HashMap;
+
+//
+// learns the longest mqtt keepalive a network's NAT keeps an idle connection for.
+//
+// per network (type + SSID/carrier) it keeps the longest interval a connection
+// survived (good) and the shortest one it was lost at (bad). without a bad interval
+// the probe doubles, then it bisects [good, bad] until bad - good is within the
+// resolution and settles on good. a connection survived an interval when it went
+// IDLE_CYCLES of them without a packet of ours (onActivity()) and was still up: the
+// client pings after one quiet interval and times out by the next one when the ping
+// is not answered. uptime alone proves nothing, a busy connection never pings.
+// it was lost at one when it broke by a keepalive timeout on the same network it was
+// made on: any other loss (leaving range, broker restart, network switch) says
+// nothing about the NAT.
+// a bad interval expires after a while, so a network is probed higher again.
+// learned values are kept in a Store so they survive restarts, the clock is wall
+// time (ms since epoch) so that expiry holds across reboots.
+//
+public class KeepAliveLearner {
+
+    static final int IDLE_CYCLES = 2;
+
+    private final ReconnectScheduler.Clock mClock;  // ms
+    private final Store mStore;
+    private final int mMin;
+    private final int mMax;
+    private final int mResolution;
+    private final long mBadTTL;  // ms
+
+    private final HashMap<String, State> mStates = new HashMap<>();
+
+    // connection in progress
+    private String mNetwork = null;
+    private int mInterval = 0;
+
+    // read and written by onActivity() without the lock
+    private volatile long mIdleProof = 0;  // ms, 0 when not connected
+    private volatile long mLastActivity = 0;
+
+    public KeepAliveLearner(ReconnectScheduler.Clock clock, Store store, int min, int max, int resolution,
+                            long badTTL) {
+        mClock = clock;
+        mStore = store;
+        mMin = Math.max(min, 1);
+        mMax = Math.max(max, mMin);
+        mResolution = Math.max(resolution, 1);
+        mBadTTL = Math.max(badTTL, 0);
+    }
+
+    // keepalive in seconds for next connection on network, start is used until
+    // something is learned about it
+    public synchronized int select(String network, int start) {
+        State s = state(network);
+        if (s.good == 0 && s.bad == 0)
+            return clamp(start);
+        return probe(s, start);
+    }
+
+    // connection on network is up with interval
+    public synchronized void onConnected(String network, int interval) {
+        if (mNetwork != null)
+            onDisconnected();
+        mNetwork = network;
+        mInterval = interval;
+        mLastActivity = mClock.now();
+        mIdleProof = interval > 0 ? IDLE_CYCLES * interval * 1000L : 0;
+    }
+
+    // a packet was sent or received on the connection. cheap, called for every message
+    public void onActivity() {
+        long proof = mIdleProof;
+        if (proof == 0)
+            return;
+        long now = mClock.now();
+        long last = mLastActivity;
+        mLastActivity = now;
+        if (now - last >= proof)
+            idled();
+    }
+
+    // connection closed by us, e.g. disconnect or handover
+    public synchronized void onDisconnected() {
+        if (mNetwork == null)
+            return;
+        if (mIdleProof > 0 && mClock.now() - mLastActivity >= mIdleProof)
+            idled();
+        end();
+    }
+
+    // connection lost. blamed on the interval only if it was a keepalive timeout and
+    // the current network is still the one connected on
+    public synchronized void onConnectionLost(boolean timeout, String network) {
+        if (mNetwork == null)
+            return;
+        if (timeout && mNetwork.equals(network))
+            lost(state(mNetwork), mInterval);
+        end();
+    }
+
+    // longest interval known to work on network, 0 if none yet
+    public synchronized int getGood(String network) {
+        return state(network).good;
+    }
+
+    // shortest interval the connection was lost at on network, 0 if none yet
+    public synchronized int getBad(String network) {
+        return state(network).bad;
+    }
+
+    public synchronized boolean isSettled(String network) {
+        State s = state(network);
+        return s.good > 0 && (s.good >= mMax || (s.bad > 0 && s.bad - s.good <= mResolution));
+    }
+
+    public synchronized void forget(String network) {
+        mStates.remove(network);
+        mStore.save(network, null);
+    }
+
+    // the connection was quiet for IDLE_CYCLES intervals and is still up
+    private synchronized void idled() {
+        if (mNetwork != null)
+            survived(state(mNetwork), mInterval);
+    }
+
+    private void end() {
+        mNetwork = null;
+        mIdleProof = 0;
+    }
+
+    private void survived(State s, int interval) {
+        if (interval <= s.good)
+            return;
+        s.good = interval;
+        if (s.bad > 0 && s.bad <= s.good)
+            s.bad = 0;  // the NAT got more patient
+        save(s);
+    }
+
+    private void lost(State s, int interval) {
+        if (s.bad > 0 && interval >= s.bad)
+            return;
+        s.bad = interval;
+        s.badAt = mClock.now();
+        if (s.good >= s.bad)
+            s.good = s.bad / 2 >= mMin ? s.bad / 2 : 0;  // the NAT got less patient
+        save(s);
+    }
+
+    private int probe(State s, int start) {
+        if (s.bad == 0)
+            return clamp(s.good > 0 ? s.good * 2 : start);
+        if (s.good == 0)
+            return clamp(Math.min(start, s.bad / 2));
+        if (s.bad - s.good <= mResolution)
+            return clamp(s.good);
+        return clamp((s.good + s.bad) / 2);
+    }
+
+    private int clamp(int v) {
+        return Math.min(Math.max(v, mMin), mMax);
+    }
+
+    private State state(String network) {
+        State s = mStates.get(network);
+        if (s == null) {
+            s = new State(network);
+            String v = mStore.load(network);
+            if (v != null) {
+                String[] f = v.split(",");
+                try {
+                    s.good = Integer.parseInt(f[0]);
+                    s.bad = Integer.parseInt(f[1]);
+                    s.badAt = f.length > 2 ? Long.parseLong(f[2]) : mClock.now();
+                } catch (RuntimeException e) {
+                    s.good = 0;
+                    s.bad = 0;
+                }
+            }
+            mStates.put(network, s);
+        }
+
+        // forget an old loss, the NAT may have changed or the loss been a fluke
+        if (s.bad > 0 && mBadTTL > 0 && mClock.now() - s.badAt >= mBadTTL) {
+            s.bad = 0;
+            save(s);
+        }
+        return s;
+    }
+
+    private void save(State s) {
+        mStore.save(s.network, s.good + "," + s.bad + "," + s.badAt);
+    }
+
+    private static class State {
+        final String network;
+        int good = 0;
+        int bad = 0;
+        long badAt = 0;
+
+        State(String network) {
+            this.network = network;
+        }
+    }
+
+    // persistent storage of learned values, value is null to remove
+    public interface Store {
+        String load(String network);
+
+        void save(String network, String value);
+    }
+}
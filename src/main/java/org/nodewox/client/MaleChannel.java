@@ -1,9 +1,38 @@
 package org.nodewox.client;
 
+import android.os.SystemClock;
+import android.util.Log;
+
 import java.nio.ByteBuffer;
 
+import static org.nodewox.client.Channel.DataType.RAW;
+
 public abstract class MaleChannel extends Channel {
 
+    private SampleBlock mBlock = null;
+
+    // encode buffer reused by every feed call, guarded by this
+    private ByteBuffer mBuf = ByteBuffer.allocate(64);
+
+    // outbound scheduling, params "weight", "byterate" and "flowcap" take precedence when declared
+    private int mWeight = 1;
+    private int mByteRate = 0;
+    private int mFlowCapacity = 100;
+    private volatile ChannelScheduler.Flow mFlow = null;
+
+    // time of last sample let through, samples dropped by getSampleInterval() and the
+    // latest one held back until the interval is over (null is an all-zero packet). guarded by this
+    private long mLastSample = 0;
+    private long mDecimated = 0;
+    private boolean mHolding = false;
+    private byte[] mHeld = null;
+    private final Runnable mTrailTask = new Runnable() {
+        @Override
+        public void run() {
+            sendHeld();
+        }
+    };
+
     public MaleChannel(Thing thing, String key, DataType dtype, int dim) {
         super(thing, key, Gender.MALE, dtype, dim);
     }
@@ -12,99 +41,406 @@ public abstract class MaleChannel extends Channel {
         super(thing, key, Gender.MALE, dtype);
     }
 
-    protected void feedData(final Object[] data) {
+    public MaleChannel(Thing thing, String key, ChannelCodec codec, int dim) {
+        super(thing, key, Gender.MALE, codec, dim);
+    }
+
+    // share of the outbound bandwidth relative to other channels
+    public int getWeight() {
+        return intParam("weight", mWeight);
+    }
+
+    public void setWeight(int v) {
+        mWeight = Math.max(v, 1);
+    }
+
+    // max bytes per second published by this channel, 0 for no limit
+    public int getByteRate() {
+        return intParam("byterate", mByteRate);
+    }
+
+    public void setByteRate(int v) {
+        mByteRate = Math.max(v, 0);
+    }
+
+    // packets waiting for their turn while connected, 0 for no limit. the oldest are
+    // dropped over it and counted in getDroppedPackets()
+    public int getFlowCapacity() {
+        return intParam("flowcap", mFlowCapacity);
+    }
+
+    public void setFlowCapacity(int v) {
+        mFlowCapacity = Math.max(v, 0);
+    }
+
+    private int intParam(String key, int def) {
+        NodeParam p = getParam(key);
+        if (p != null && p.getValue() instanceof Integer)
+            return (Integer) p.getValue();
+        return def;
+    }
+
+    //
+    // outbound stats of the channel scheduler
+    //
+    public long getSentPackets() {
+        ChannelScheduler.Flow f = mFlow;
+        if (f == null)
+            return 0;
+        synchronized (f.lock) {
+            return f.packets;
+        }
+    }
+
+    public long getSentBytes() {
+        ChannelScheduler.Flow f = mFlow;
+        if (f == null)
+            return 0;
+        synchronized (f.lock) {
+            return f.bytes;
+        }
+    }
+
+    // bytes per second sent over the last second
+    public double getSendRate() {
+        ChannelScheduler.Flow f = mFlow;
+        if (f == null)
+            return 0;
+        synchronized (f.lock) {
+            return f.rate;
+        }
+    }
+
+    // packets waiting for their turn, and dropped as the channel's queue was full
+    public int getQueuedPackets() {
+        ChannelScheduler.Flow f = mFlow;
+        if (f == null)
+            return 0;
+        synchronized (f.lock) {
+            return f.queue.size();
+        }
+    }
+
+    public long getDroppedPackets() {
+        ChannelScheduler.Flow f = mFlow;
+        if (f == null)
+            return 0;
+        synchronized (f.lock) {
+            return f.dropped;
+        }
+    }
+
+    // queueing delay in ms, moving average and max
+    public double getQueueDelay() {
+        ChannelScheduler.Flow f = mFlow;
+        if (f == null)
+            return 0;
+        synchronized (f.lock) {
+            return f.delay / 1e6;
+        }
+    }
+
+    public double getMaxQueueDelay() {
+        ChannelScheduler.Flow f = mFlow;
+        if (f == null)
+            return 0;
+        synchronized (f.lock) {
+            return f.maxDelay / 1e6;
+        }
+    }
+
+    // flow of this channel, caller holds the scheduler
+    ChannelScheduler.Flow outboundFlow(ChannelScheduler sched) {
+        if (mFlow == null)
+            mFlow = new ChannelScheduler.Flow(this, sched);
+        return mFlow;
+    }
+
+    // min ms between two packets fed into this channel, closer ones are dropped except the
+    // last of a burst, which is sent when the interval is over. feedSample() blocks are not
+    // affected. follows the network profile by default, 0 for no limit
+    public long getSampleInterval() {
+        Messenger messenger = getMessenger();
+        return messenger == null ? 0 : messenger.getActiveProfile().getSampleInterval();
+    }
+
+    public synchronized long getDecimatedSamples() {
+        return mDecimated;
+    }
+
+    // true if packet just encoded into mBuf must not be sent now, caller holds this.
+    // the latest one held back is sent once the interval is over, so a burst always
+    // ends with its last value
+    private boolean decimate(Messenger messenger, int res) {
+        long iv = getSampleInterval();
+        if (iv <= 0 || res == ChannelCodec.UNSUPPORTED)
+            return false;
+
+        long now = SystemClock.elapsedRealtime();
+        if (mLastSample > 0 && now - mLastSample < iv) {
+            if (mHolding)
+                mDecimated++;
+            else
+                messenger.postDelayed(mTrailTask, iv - (now - mLastSample));
+            mHeld = takePacket(res);
+            mHolding = true;
+            return true;
+        }
+
+        // a newer sample supersedes the one held back
+        if (mHolding) {
+            messenger.removeCallbacks(mTrailTask);
+            mHolding = false;
+            mHeld = null;
+            mDecimated++;
+        }
+        mLastSample = now;
+        return false;
+    }
+
+    // send the sample held back by decimate()
+    private void sendHeld() {
+        Messenger messenger = getMessenger();
+        synchronized (this) {
+            if (!mHolding)
+                return;
+            byte[] packet = mHeld;
+            mHolding = false;
+            mHeld = null;
+            mLastSample = SystemClock.elapsedRealtime();
+            if (messenger != null)
+                getThing().publishPacket(messenger, this, packet);
+        }
+    }
+
+    // number of samples gathered into one block by feedSample()
+    public int getBlockSize() {
+        return 16;
+    }
+
+    // append a sample taken at time (ms since epoch), the block is published on
+    // <prefix><id>/b once it holds getBlockSize() samples
+    protected void feedSample(long time, final Object[] data) {
+        byte[] packet = null;
+        synchronized (this) {
+            if (mBlock == null)
+                mBlock = new SampleBlock(getCodec(), getDataDim(), getBlockSize());
+            if (mBlock.add(time, data))
+                packet = mBlock.take();
+        }
+        if (packet != null)
+            publishBlock(packet);
+    }
+
+    protected void feedSample(final Object[] data) {
+        feedSample(System.currentTimeMillis(), data);
+    }
+
+    // publish samples gathered so far
+    protected void flushSamples() {
+        byte[] packet = null;
+        synchronized (this) {
+            if (mBlock != null)
+                packet = mBlock.take();
+        }
+        if (packet != null)
+            publishBlock(packet);
+    }
+
+    private void publishBlock(byte[] packet) {
+        Messenger messenger = getMessenger();
+        if (messenger != null)
+            getThing().publishBlock(messenger, this, packet);
+    }
+
+    // messenger of the root node, null while root is disabled
+    private Messenger getMessenger() {
         Node root = getApp().getRootNode();
+        if (!root.isDisabled() && root instanceof MessageSensible)
+            return ((MessageSensible) root).getMessenger();
+        else
+            return null;
+    }
+
+    // encode buffer cleared for next packet, grown when codec overflowed the last one
+    private ByteBuffer encodeBuffer(int size, boolean grow) {
+        if (grow || mBuf.capacity() < size)
+            mBuf = ByteBuffer.allocate(Math.max(size, mBuf.capacity() * 2));
+        mBuf.clear();
+        return mBuf;
+    }
+
+    private int expectedSize(int n) {
+        return n * Math.max(getCodec().getElementSize(), 1);
+    }
+
+    // publish packet encoded in mBuf
+    private void sendEncoded(Messenger messenger, int res, String what) {
+        if (res == ChannelCodec.UNSUPPORTED) {
+            Log.w("nodewox/channel", "cannot feed " + what + " into " + getDataType() + " channel " + getKey());
+            return;
+        }
+        getThing().publishPacket(messenger, this, takePacket(res));
+    }
+
+    // payload of packet encoded in mBuf, null for an all-zero packet.
+    // it is copied out since the mqtt client keeps it
+    byte[] takePacket(int res) {
+        if (res != ChannelCodec.DONE)
+            return null;
+        byte[] packet = new byte[mBuf.position()];
+        System.arraycopy(mBuf.array(), 0, packet, 0, packet.length);
+        return packet;
+    }
+
+    //
+    // encode a packet into mBuf and return codec's result, caller holds this
+    //
+    int encodeShorts(short[] data) {
+        int n = Math.min(getDataDim(), data.length);
+        int res = getCodec().encodeShorts(data, n, encodeBuffer(expectedSize(n), false));
+        while (res == ChannelCodec.OVERFLOW)
+            res = getCodec().encodeShorts(data, n, encodeBuffer(0, true));
+        return res;
+    }
+
+    int encodeInts(int[] data) {
+        int n = Math.min(getDataDim(), data.length);
+        int res = getCodec().encodeInts(data, n, encodeBuffer(expectedSize(n), false));
+        while (res == ChannelCodec.OVERFLOW)
+            res = getCodec().encodeInts(data, n, encodeBuffer(0, true));
+        return res;
+    }
+
+    int encodeLongs(long[] data) {
+        int n = Math.min(getDataDim(), data.length);
+        int res = getCodec().encodeLongs(data, n, encodeBuffer(expectedSize(n), false));
+        while (res == ChannelCodec.OVERFLOW)
+            res = getCodec().encodeLongs(data, n, encodeBuffer(0, true));
+        return res;
+    }
+
+    int encodeFloats(float[] data) {
+        int n = Math.min(getDataDim(), data.length);
+        int res = getCodec().encodeFloats(data, n, encodeBuffer(expectedSize(n), false));
+        while (res == ChannelCodec.OVERFLOW)
+            res = getCodec().encodeFloats(data, n, encodeBuffer(0, true));
+        return res;
+    }
+
+    int encodeBools(boolean[] data) {
+        int n = Math.min(getDataDim(), data.length);
+        int res = getCodec().encodeBools(data, n, encodeBuffer(expectedSize(n), false));
+        while (res == ChannelCodec.OVERFLOW)
+            res = getCodec().encodeBools(data, n, encodeBuffer(0, true));
+        return res;
+    }
+
+    int encodeBytes(ByteBuffer data) {
+        int n = getDataType() == RAW ? data.remaining() : Math.min(getDataDim(), data.remaining());
+        int res = getCodec().encodeBytes(data, n, encodeBuffer(expectedSize(n), false));
+        while (res == ChannelCodec.OVERFLOW)
+            res = getCodec().encodeBytes(data, n, encodeBuffer(0, true));
+        return res;
+    }
+
+    int encodeData(Object[] data) {
+        int n = getDataType() == RAW ? data.length : Math.min(getDataDim(), data.length);
+        int res = getCodec().encode(data, n, encodeBuffer(expectedSize(n), false));
+        while (res == ChannelCodec.OVERFLOW)
+            res = getCodec().encode(data, n, encodeBuffer(0, true));
+        return res;
+    }
+
+    protected void feedShorts(final short[] data) {
+        Messenger messenger = getMessenger();
+        if (messenger == null)
+            return;
+
+        synchronized (this) {
+            int res = encodeShorts(data);
+            if (decimate(messenger, res))
+                return;
+            sendEncoded(messenger, res, "shorts");
+        }
+    }
+
+    protected void feedInts(final int[] data) {
+        Messenger messenger = getMessenger();
+        if (messenger == null)
+            return;
+
+        synchronized (this) {
+            int res = encodeInts(data);
+            if (decimate(messenger, res))
+                return;
+            sendEncoded(messenger, res, "ints");
+        }
+    }
+
+    protected void feedLongs(final long[] data) {
+        Messenger messenger = getMessenger();
+        if (messenger == null)
+            return;
+
+        synchronized (this) {
+            int res = encodeLongs(data);
+            if (decimate(messenger, res))
+                return;
+            sendEncoded(messenger, res, "longs");
+        }
+    }
+
+    protected void feedFloats(final float[] data) {
+        Messenger messenger = getMessenger();
+        if (messenger == null)
+            return;
+
+        synchronized (this) {
+            int res = encodeFloats(data);
+            if (decimate(messenger, res))
+                return;
+            sendEncoded(messenger, res, "floats");
+        }
+    }
+
+    protected void feedBools(final boolean[] data) {
+        Messenger messenger = getMessenger();
+        if (messenger == null)
+            return;
+
+        synchronized (this) {
+            int res = encodeBools(data);
+            if (decimate(messenger, res))
+                return;
+            sendEncoded(messenger, res, "bools");
+        }
+    }
+
+    // feed remaining bytes of data into a BYTE or RAW channel, data's position is kept
+    protected void feedBytes(final ByteBuffer data) {
+        Messenger messenger = getMessenger();
+        if (messenger == null)
+            return;
+
+        synchronized (this) {
+            int res = encodeBytes(data);
+            if (decimate(messenger, res))
+                return;
+            sendEncoded(messenger, res, "bytes");
+        }
+    }
+
+    protected void feedData(final Object[] data) {
+        Messenger messenger = getMessenger();
+        if (messenger == null)
+            return;
 
-        if (!root.isDisabled() && root instanceof MessageSensible) {
-            Messenger messenger = ((MessageSensible) root).getMessenger();
-            if (messenger.isConnected()) {
-                // encode packet
-                int n = Math.min(getDataDim(), data.length);
-                int lastidx = -1;
-                ByteBuffer buf = null;
-
-                switch (getDataType()) {
-                    case RAW:
-                        if (data.length > 0) {
-                            buf = ByteBuffer.allocate(data.length);
-                            for (int i = 0; i < data.length; i++) {
-                                Byte b = (Byte) data[i];
-                                buf.put(i, b);
-                                if (b != '\0') lastidx = i;
-                            }
-                        }
-                        break;
-                    case BYTE:
-                        buf = ByteBuffer.allocate(n);
-                        for (int i = 0; i < n; i++) {
-                            Byte b = (Byte) data[i];
-                            if (b != '\0') lastidx = i;
-                            buf.put(i, b);
-                        }
-                        break;
-                    case INT16:
-                        buf = ByteBuffer.allocate(n * 2);
-                        for (int i = 0; i < n; i++) {
-                            if ((Short) data[i] != 0) lastidx = i;
-                            buf.putShort(i * 2, (Short) data[i]);
-                        }
-                        break;
-                    case INT32:
-                        buf = ByteBuffer.allocate(n * 4);
-                        for (int i = 0; i < n; i++) {
-                            Integer u = (Integer) data[i];
-                            if (u != 0) lastidx = i;
-                            buf.putInt(i * 4, u);
-                        }
-                        break;
-                    case INT64:
-                        buf = ByteBuffer.allocate(n * 8);
-                        for (int i = 0; i < n; i++) {
-                            Long u = (Long) data[i];
-                            if (u != 0) lastidx = i;
-                            buf.putLong(i * 8, u);
-                        }
-                        break;
-                    case FLOAT:
-                        buf = ByteBuffer.allocate(n * 4);
-                        for (int i = 0; i < n; i++) {
-                            Float f = (Float) data[i];
-                            if (f != 0) lastidx = i;
-                            buf.putFloat(i * 4, f);
-                        }
-                        break;
-                    case BOOL:
-                        buf = ByteBuffer.allocate(n);
-                        for (int i = 0; i < n; i++) {
-                            Boolean b = (Boolean) data[i];
-                            if (b) lastidx = i;
-                            buf.put(i, (byte) (b ? 1 : 0));
-                        }
-                        break;
-                    case STRING:
-                        int sz = 0;
-                        for (int i = 0; i < n; i++) {
-                            if (((String) data[i]).length() > 0) {
-                                lastidx = i;
-                                sz += ((String) data[i]).getBytes().length + 1;
-                            }
-                        }
-                        if (lastidx >= 0) {
-                            buf = ByteBuffer.allocate(sz);
-                            for (int i = 0; i <= lastidx; i++) {
-                                byte[] s = ((String) data[i]).getBytes();
-                                buf.put(s);
-                                buf.put((byte) '\0');
-                            }
-                        }
-                        break;
-                }
-
-                if (lastidx < 0)
-                    buf = null;
-
-                messenger.publish(getApp().getTopicPrefix() + getID(), buf == null ? null : buf.array(), 0, false, null);
-            }
+        synchronized (this) {
+            int res = encodeData(data);
+            if (decimate(messenger, res))
+                return;
+            sendEncoded(messenger, res, "data");
         }
     }
 }
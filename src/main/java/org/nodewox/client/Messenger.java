@@ -1,22 +1,24 @@
 package org.nodewox.client;
 
-import android.app.AlarmManager;
-import android.app.PendingIntent;
-import android.content.Intent;
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.Serializable;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import static android.content.Context.ALARM_SERVICE;
+import java.util.Random;
 
 public abstract class Messenger extends Handler {
 
@@ -24,11 +26,34 @@ public abstract class Messenger extends Handler {
     private final MessageSensible theNode;
     private final NxService.EventType[] etypes = NxService.EventType.values();
 
-    // regexp for known topic
-    private final Pattern mKnownTopicPat;
+    // parses known topics and resolves their node
+    private final TopicRouter mRouter;
+
+    // lanes dispatching inbound messages, created on first message
+    private volatile InboundLane[] mLanes = null;
+
+    // fair scheduling of male channel packets in front of the in-flight window
+    private final ChannelScheduler mScheduler = new ChannelScheduler(this);
+
+    // network thread publishing packets fed into things' feed queues
+    private FeedPump mFeedPump = null;
+
+    private ReconnectScheduler mReconnect = null;
+    private KeepAliveLearner mKeepAlive = null;
+    private volatile boolean mIsConnected = false;
 
-    private PendingIntent mConnCheckIntent = null;
-    private boolean mIsConnected = false;
+    // publish settings of the current network
+    private volatile NetworkProfile mProfile = null;
+    private volatile int mProfileSwitches = 0;
+
+    // publishes made while offline, drained after reconnect
+    private final OutboundQueue mOutbox = new OutboundQueue();
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            drainOutbox();
+        }
+    };
 
     public Messenger(MessageSensible mgrNode) {
         if (BuildConfig.DEBUG && !(mgrNode instanceof Node))
@@ -36,7 +61,22 @@ public abstract class Messenger extends Handler {
 
         this.theNode = mgrNode;
         this.mApp = ((Node) mgrNode).getApp();
-        mKnownTopicPat = Pattern.compile("^" + this.mApp.getTopicPrefix() + "(\\d+)(/q)?$");
+        mRouter = new TopicRouter(this.mApp.getTopicPrefix(), (Node) mgrNode);
+
+        // report dropped publishes the same way as failed ones
+        mOutbox.setDropListener(new OutboundQueue.DropListener() {
+            @Override
+            public void onDrop(OutboundQueue.Entry e, String reason) {
+                if (e.getContext() != null) {
+                    Bundle data = new Bundle();
+                    data.putSerializable("context", e.getContext());
+                    data.putString("error", reason);
+                    Message m = obtainMessage(NxService.EventType.PUB_FAIL.ordinal());
+                    m.setData(data);
+                    sendMessage(m);
+                }
+            }
+        });
     }
 
     public abstract String getAddr();
@@ -78,45 +118,281 @@ public abstract class Messenger extends Handler {
         return true;
     }
 
+    // keep unacknowledged qos 1/2 messages across process death
+    public boolean isMqttPersistent() {
+        return false;
+    }
+
+    public MqttClientPersistence getMqttPersistence() {
+        if (isMqttPersistent())
+            return new JournalPersistence(new File(mApp.getFilesDir(), "mqtt"));
+        else
+            return new MemoryPersistence();
+    }
+
     public int getMqttKeepAlive() {
-        return 60;
+        return getActiveProfile().getKeepAlive();
+    }
+
+    // learn the longest keepalive each network's NAT allows, starting from getMqttKeepAlive()
+    public boolean isKeepAliveAdaptive() {
+        return false;
+    }
+
+    // range of keepalive probed by the adaptive mode, in seconds
+    public int getMinKeepAlive() {
+        return 30;
+    }
+
+    public int getMaxKeepAlive() {
+        return 30 * 60;
+    }
+
+    // ms after which a keepalive the connection was lost at may be probed again
+    public long getKeepAliveReprobe() {
+        return 7 * 24 * 3600 * 1000L;
+    }
+
+    public synchronized KeepAliveLearner getKeepAliveLearner() {
+        if (mKeepAlive == null) {
+            final SharedPreferences prefs = mApp.getSharedPreferences("nodewox-keepalive", Context.MODE_PRIVATE);
+            mKeepAlive = new KeepAliveLearner(
+                    new ReconnectScheduler.Clock() {
+                        @Override
+                        public long now() {
+                            return System.currentTimeMillis();
+                        }
+                    },
+                    new KeepAliveLearner.Store() {
+                        @Override
+                        public String load(String network) {
+                            return prefs.getString(network, null);
+                        }
+
+                        @Override
+                        public void save(String network, String value) {
+                            if (value == null)
+                                prefs.edit().remove(network).apply();
+                            else
+                                prefs.edit().putString(network, value).apply();
+                        }
+                    },
+                    getMinKeepAlive(), getMaxKeepAlive(), 15, getKeepAliveReprobe());
+        }
+        return mKeepAlive;
+    }
+
+    // publish settings used on a type of network, override to tune or replace the
+    // built-in profiles. NONE is the state before the first network is known
+    public NetworkProfile getNetworkProfile(NxService.NetworkType type) {
+        return type == NxService.NetworkType.MOBILE ? NetworkProfile.MOBILE : NetworkProfile.WIFI;
+    }
+
+    public NetworkProfile getActiveProfile() {
+        NetworkProfile p = mProfile;
+        if (p == null) {
+            p = getNetworkProfile(NxService.NetworkType.NONE);
+            mProfile = p;
+        }
+        return p;
+    }
+
+    // number of times the active profile changed
+    public int getProfileSwitches() {
+        return mProfileSwitches;
+    }
+
+    // called by the service as the network changes, a lost network keeps the last profile
+    void onNetworkType(NxService.NetworkType type) {
+        if (type == NxService.NetworkType.NONE)
+            return;
+
+        NetworkProfile p = getNetworkProfile(type);
+        if (p != null && p != mProfile) {
+            Log.v("nodewox/messenger", "network profile " + p.getName());
+            mProfile = p;
+            mProfileSwitches++;
+        }
+    }
+
+    // most bytes an inbound compressed frame may inflate to, larger ones are dropped
+    public int getMaxFrameSize() {
+        return 256 * 1024;
+    }
+
+    // number of inbound messages buffered between mqtt thread and each dispatch lane
+    public int getInboundRingSize() {
+        return 256;
+    }
+
+    // thread(s) where inbound messages are processed, i.e. where FemaleChannel.perform(),
+    // handleRequest() and onMessage() run. connection, subscribe and publish callbacks
+    // are always delivered on messenger's own (main) looper, post() to it for UI work.
+    // while a lane's ring is full, e.g. the main thread stalls in MAIN mode, the mqtt
+    // client's callback thread waits for it, so no other message nor publish completion
+    // is delivered meanwhile: never wait on publishSync() or a DeliveryToken in a handler
+    public DispatchMode getDispatchMode() {
+        return DispatchMode.MAIN;
+    }
+
+    // number of lanes for DispatchMode.KEYED
+    public int getDispatchThreads() {
+        return 2;
+    }
+
+    // publishes handed to the mqtt client and not yet completed, per qos level.
+    // qos 1 and 2 together also set the client's max in-flight
+    public int getInflightWindow(int qos) {
+        return qos == 0 ? 32 : 10;
+    }
+
+    // publishes waiting for the in-flight window, further ones are refused
+    public int getPendingLimit() {
+        return 1000;
+    }
+
+    // slots of every in-flight window kept free of bulk (channel data) publishes,
+    // so control publishes like request responses don't wait behind a data burst
+    public int getControlReserve() {
+        return 1;
+    }
+
+    // pending control publishes sent per pending bulk one, 0 to always send control first
+    public int getControlWeight() {
+        return 0;
+    }
+
+    // called on the mqtt client's thread when publishes start waiting for the
+    // in-flight window (full=true) and when they all went out again
+    public void onOutboundWindow(boolean full) {
+    }
+
+    // how the feed thread waits for packets of things with a feed queue
+    public FeedPump.WaitStrategy getFeedWaitStrategy() {
+        return FeedPump.WaitStrategy.BLOCKING;
+    }
+
+    ChannelScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    void dispatchChannels() {
+        mScheduler.dispatch();
+    }
+
+    synchronized FeedPump getFeedPump() {
+        if (mFeedPump == null)
+            mFeedPump = new FeedPump(this, getFeedWaitStrategy());
+        return mFeedPump;
+    }
+
+    // total number of messages kept while offline, 0 to disable store-and-forward
+    public int getOutboxLimit() {
+        return 1000;
+    }
+
+    // number of messages kept per topic while offline
+    public int getOutboxCapacity(String topic) {
+        return 100;
+    }
+
+    public OutboundQueue.DropPolicy getOutboxPolicy(String topic) {
+        return OutboundQueue.DropPolicy.DROP_OLDEST;
+    }
+
+    // time to live of a queued message, 0 to keep until sent
+    public long getOutboxTTL(String topic) {
+        return 10 * 60 * 1000;  // in ms
+    }
+
+    // messages per second sent from outbox after reconnect
+    public int getOutboxDrainRate() {
+        return 50;
+    }
+
+    public OutboundQueue getOutbox() {
+        return mOutbox;
     }
 
     public boolean isConnected() {
         return mIsConnected;
     }
 
+    // delay in ms before the first reconnect attempt after a failure, 0 to not reconnect
     public int getConnectionCheckInterval() {
-        return 5000;  // in sec
-    }
-
-    private void checkConnection(boolean on) {
-        if (on && mConnCheckIntent == null) {
-            int timeout = getConnectionCheckInterval();
-            if (timeout > 0) {
-                Log.v("nodewox/service", "schedule to connect after " + timeout + "ms");
-                Intent it = new Intent(mApp, mApp.getService().getClass());
-                it.setAction(NxService.ACTION_CONNECT);
-                mConnCheckIntent = PendingIntent.getService(mApp, 0, it, 0);
-                long now = System.currentTimeMillis();
-                ((AlarmManager) mApp.getSystemService(ALARM_SERVICE)).setRepeating(
-                        AlarmManager.RTC_WAKEUP, now + 1000, timeout, mConnCheckIntent);
-            }
-        } else if (!on && mConnCheckIntent != null) {
-            ((AlarmManager) mApp.getSystemService(ALARM_SERVICE)).cancel(mConnCheckIntent);
-            mConnCheckIntent = null;
+        return 5000;
+    }
+
+    // reconnect delay doubles on each failure up to this many ms
+    public int getReconnectMaxInterval() {
+        return 5 * 60 * 1000;
+    }
+
+    // random part of each reconnect delay, as a fraction of it
+    public float getReconnectJitter() {
+        return 0.2f;
+    }
+
+    // ms the network must stay unchanged before the connection is moved onto it
+    public int getNetworkDebounce() {
+        return 2000;
+    }
+
+    // ms a connection replaced by a network handover may finish its in-flight messages
+    public int getHandoverQuiesce() {
+        return 5000;
+    }
+
+    public synchronized ReconnectScheduler getReconnectScheduler() {
+        if (mReconnect == null) {
+            mReconnect = new ReconnectScheduler(
+                    new ReconnectScheduler.Clock() {
+                        @Override
+                        public long now() {
+                            return SystemClock.elapsedRealtime();
+                        }
+                    },
+                    new ReconnectScheduler.Timer() {
+                        @Override
+                        public void schedule(Runnable task, long delay) {
+                            postDelayed(task, delay);
+                        }
+
+                        @Override
+                        public void cancel(Runnable task) {
+                            removeCallbacks(task);
+                        }
+                    },
+                    new Random(),
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            NxService svc = mApp.getService();
+                            if (svc != null && !isConnected()) {
+                                Log.v("nodewox/messenger", "reconnecting");
+                                svc.connect();
+                            }
+                        }
+                    },
+                    getConnectionCheckInterval(), getReconnectMaxInterval(), 2, getReconnectJitter());
         }
+        return mReconnect;
+    }
+
+    private void scheduleReconnect() {
+        if (getConnectionCheckInterval() > 0)
+            getReconnectScheduler().onFailure();
     }
 
     public synchronized void connect() {
         if (!isConnected()) {
-            checkConnection(false);  // stop check connection
+            getReconnectScheduler().cancel();  // attempt now instead
             mApp.getService().connect();
         }
     }
 
     public synchronized void disconnect() {
-        checkConnection(false);
+        getReconnectScheduler().reset();
         mApp.getService().disconnect();
     }
 
@@ -141,50 +417,92 @@ public abstract class Messenger extends Handler {
     }
 
     public synchronized void publish(String topic, byte[] payload, int qos, boolean retained, Serializable sessid) {
-        if (isConnected()) {
-            mApp.getService().publish(topic, payload, qos, retained, sessid);
+        publish(topic, payload, qos, retained, sessid, Priority.CONTROL);
+    }
+
+    public synchronized void publish(String topic, byte[] payload, int qos, boolean retained, Serializable sessid,
+                                     Priority priority) {
+        // keep order behind messages still waiting in outbox
+        if (isConnected() && mOutbox.isEmpty())
+            mApp.getService().publish(topic, payload, qos, retained, sessid, priority);
+        else
+            offerOutbox(topic, payload, qos, retained, sessid);
+    }
+
+    // non-blocking publish, return false if the message was not taken because the
+    // in-flight window and its pending queue (or the outbox while offline) are full
+    public synchronized boolean offer(String topic, byte[] payload, int qos, boolean retained, Serializable sessid,
+                                      Priority priority) {
+        if (isConnected() && mOutbox.isEmpty())
+            return mApp.getService().offer(topic, payload, qos, retained, sessid, priority);
+        else
+            return offerOutbox(topic, payload, qos, retained, sessid);
+    }
+
+    boolean offerOutbox(String topic, byte[] payload, int qos, boolean retained, Serializable sessid) {
+        long ttl = getOutboxTTL(topic);
+        OutboundQueue.Entry e = new OutboundQueue.Entry(topic, payload, qos, retained, sessid,
+                ttl > 0 ? SystemClock.elapsedRealtime() + ttl : 0);
+        return mOutbox.offer(e, getOutboxCapacity(topic), getOutboxPolicy(topic), getOutboxLimit());
+    }
+
+    private synchronized void drainOutbox() {
+        if (!isConnected())
+            return;
+
+        // send in ticks of 100ms to keep reconnect from flooding the broker
+        int n = Math.max(1, getOutboxDrainRate() / 10);
+        long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < n; i++) {
+            // leave the rest in outbox while the in-flight window is backed up
+            if (mApp.getService().getPendingCount() > 0)
+                break;
+
+            OutboundQueue.Entry e = mOutbox.poll(now);
+            if (e == null)
+                return;
+            mApp.getService().publish(e.getTopic(), e.getPayload(), e.getQos(), e.isRetained(), e.getContext());
         }
+
+        if (!mOutbox.isEmpty())
+            postDelayed(mDrainTask, 100);
     }
 
     public synchronized void publish(String topic, byte[] payload, int qos, boolean retained) {
         publish(topic, payload, qos, retained, null);
     }
 
-    public synchronized boolean publishSync(String topic, byte[] payload, int qos, boolean retained, int timeout) {
+    // blocks until delivered or timeout ms elapsed, without holding the messenger lock
+    public boolean publishSync(String topic, byte[] payload, int qos, boolean retained, int timeout) {
         if (isConnected())
             return mApp.getService().publishSync(topic, payload, qos, retained, timeout);
         else
             return false;
     }
 
-    private void processMessage(String topic, byte[] payload, int qos, boolean dup, boolean retain) {
-        Matcher m = mKnownTopicPat.matcher(topic);
-        if (!m.matches()) {
+    // publish now and return a token completing on delivery, failed at once if not
+    // connected (offline publishes are not kept in the outbox)
+    public DeliveryToken publishAsync(String topic, byte[] payload, int qos, boolean retained) {
+        if (isConnected())
+            return mApp.getService().publishAsync(topic, payload, qos, retained);
+        else
+            return DeliveryToken.failed(topic, qos, new Throwable("not connected"));
+    }
+
+    void processMessage(InboundLane lane, String topic, byte[] payload, int qos, boolean dup, boolean retain) {
+        long route = mRouter.parse(topic);
+        if (route < 0) {
             theNode.onMessage(topic, payload, qos, dup, retain);
             return;
         }
 
-        int nid = Integer.valueOf(m.group(1));
-        String verb = m.group(2);
-        if (verb == null) verb = "";
-
-        Node target = null;
-        if (nid == ((Node) theNode).getID()) {
-            target = (Node) theNode;
-        } else {
-            for (Node ch : ((Node) theNode).getChildren()) {
-                if (ch.getID() == nid) {
-                    target = ch;
-                    break;
-                }
-            }
-        }
+        Node target = mRouter.resolve(TopicRouter.idOf(route));
 
         if (target != null) {
             Map<String, JSONObject> res = null;
 
-            switch (verb) {
-                case "/q":
+            switch (TopicRouter.verbOf(route)) {
+                case TopicRouter.VERB_REQUEST:
                     JSONObject msg;
                     if (payload != null && payload.length > 0) {
                         try {
@@ -198,10 +516,29 @@ public abstract class Messenger extends Handler {
                     res = target.handleRequest(msg);
                     break;
 
-                case "":
+                case TopicRouter.VERB_DATA:
                     if (target instanceof FemaleChannel)
                         ((FemaleChannel) target).handlePacket(payload);
                     break;
+
+                case TopicRouter.VERB_BLOCK:
+                    if (target instanceof FemaleChannel)
+                        ((FemaleChannel) target).handleBlock(payload);
+                    break;
+
+                case TopicRouter.VERB_ZFRAME:
+                    payload = FrameMux.decompress(payload, getMaxFrameSize());
+                    if (payload == null) {
+                        Log.w("nodewox/messenger", "malformed or oversized compressed frame");
+                        break;
+                    }
+                    // fall through
+                case TopicRouter.VERB_FRAME:
+                    lane.frameTarget = target;
+                    if (!FrameMux.demux(payload, lane))
+                        Log.w("nodewox/messenger", "malformed multiplexed frame");
+                    lane.frameTarget = null;
+                    break;
             }
 
             if (res != null && !res.isEmpty()) {
@@ -217,6 +554,92 @@ public abstract class Messenger extends Handler {
         }
     }
 
+    // called on mqtt callback thread. messages of the same thing always take the same lane
+    void postInbound(String topic, byte[] payload, int qos, boolean dup, boolean retained) {
+        InboundLane[] lanes = getLanes();
+        InboundLane lane = lanes[0];
+        long route = mRouter.parse(topic);
+        if (route >= 0) {
+            int id = TopicRouter.idOf(route);
+            int verb = TopicRouter.verbOf(route);
+            Node n = null;
+            if (lanes.length > 1 || verb == TopicRouter.VERB_DATA || verb == TopicRouter.VERB_BLOCK)
+                n = mRouter.resolve(id);
+            if (lanes.length > 1)
+                lane = lanes[laneKey(n, id) % lanes.length];
+
+            // packets of a channel with its own inbound buffer skip the ring
+            if (verb == TopicRouter.VERB_DATA || verb == TopicRouter.VERB_BLOCK) {
+                InboundBuffer inbox = (n instanceof FemaleChannel) ? ((FemaleChannel) n).inbox() : null;
+                if (inbox != null) {
+                    if (inbox.offer(payload, verb == TopicRouter.VERB_BLOCK))
+                        lane.offer((FemaleChannel) n);
+                    return;
+                }
+            }
+        }
+        lane.offer(topic, payload, qos, dup, retained);
+    }
+
+    // lane key of a node: its thing, whose frames carry the packets of all its channels,
+    // so a channel's direct packets and frame segments are handled on one thread
+    private static int laneKey(Node n, int id) {
+        for (Node p = n; p != null; p = p.getParent()) {
+            if (p instanceof Thing)
+                return Math.max(p.getID(), 0);
+        }
+        return id;
+    }
+
+    // inbound messages waiting in all lanes
+    public int getInboundPending() {
+        InboundLane[] lanes = mLanes;
+        int n = 0;
+        if (lanes != null) {
+            for (InboundLane l : lanes)
+                n += l.pending();
+        }
+        return n;
+    }
+
+    private InboundLane[] getLanes() {
+        InboundLane[] lanes = mLanes;
+        if (lanes == null) {
+            synchronized (mRouter) {
+                lanes = mLanes;
+                if (lanes == null) {
+                    lanes = createLanes();
+                    mLanes = lanes;
+                }
+            }
+        }
+        return lanes;
+    }
+
+    private InboundLane[] createLanes() {
+        int size = getInboundRingSize();
+        switch (getDispatchMode()) {
+            case SINGLE:
+                return new InboundLane[]{new InboundLane(startLooper("nodewox-dispatch"), this, size)};
+
+            case KEYED:
+                int n = Math.max(getDispatchThreads(), 1);
+                InboundLane[] lanes = new InboundLane[n];
+                for (int i = 0; i < n; i++)
+                    lanes[i] = new InboundLane(startLooper("nodewox-dispatch-" + i), this, size);
+                return lanes;
+
+            default:
+                return new InboundLane[]{new InboundLane(getLooper(), this, size)};
+        }
+    }
+
+    private static Looper startLooper(String name) {
+        HandlerThread t = new HandlerThread(name);
+        t.start();
+        return t.getLooper();
+    }
+
     @Override
     public void handleMessage(Message msg) {
         super.handleMessage(msg);
@@ -247,25 +670,27 @@ public abstract class Messenger extends Handler {
 
             case CONNECT_SUCCESS:
                 mIsConnected = true;
-                checkConnection(false);
+                getReconnectScheduler().onSuccess();
                 theNode.onConnected(ctx);
+                removeCallbacks(mDrainTask);
+                drainOutbox();
                 break;
 
             case CONNECT_FAIL:
                 mIsConnected = false;
-                checkConnection(true);
+                scheduleReconnect();
                 theNode.onConnectFail(ctx, error);
                 break;
 
             case CONNECT_CLOSE:
                 mIsConnected = false;
-                checkConnection(false);
+                getReconnectScheduler().cancel();
                 theNode.onDisconnected(ctx);
                 break;
 
             case CONNECT_LOST:
                 mIsConnected = false;
-                checkConnection(true);
+                scheduleReconnect();
                 theNode.onConnectionLost(ctx, error);
                 break;
 
@@ -291,7 +716,7 @@ public abstract class Messenger extends Handler {
                 break;
 
             case MESSAGE:
-                processMessage(
+                postInbound(
                         bundle.getString("topic"),
                         bundle.getByteArray("payload"),
                         bundle.getInt("qos"),
@@ -304,4 +729,16 @@ public abstract class Messenger extends Handler {
         }
     }
 
+    // outbound class of a publish, see getControlReserve() and getControlWeight()
+    public enum Priority {
+        CONTROL,  // requests responses, app messages
+        BULK      // channel data
+    }
+
+    public enum DispatchMode {
+        MAIN,    // messenger's own looper
+        SINGLE,  // one background thread, all messages in order
+        KEYED    // getDispatchThreads() background threads, in order per thing
+    }
+
 }
@@ -0,0 +1,88 @@
+package org.nodewox.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//
+// bounded multi-producer / single-consumer ring over preallocated slots.
+//
+// every slot has a sequence number: a producer may claim position p when the
+// slot's sequence is p, and publishes it by setting p+1; the consumer reads
+// position p once its sequence is p+1 and frees it by setting p+capacity.
+// slots are reused in place, so nothing is allocated per element.
+//
+final class MpscRing<E> {
+
+    private final E[] mSlots;
+    private final AtomicLongArray mSeq;
+    private final int mMask;
+    private final AtomicLong mTail = new AtomicLong(0);  // next position to claim
+    private volatile long mHead = 0;  // next position to consume, written by consumer only
+
+    // slots.length must be a power of 2
+    MpscRing(E[] slots) {
+        if (slots.length == 0 || (slots.length & (slots.length - 1)) != 0)
+            throw new IllegalArgumentException("ring size must be a power of 2");
+
+        mSlots = slots;
+        mMask = slots.length - 1;
+        mSeq = new AtomicLongArray(slots.length);
+        for (int i = 0; i < slots.length; i++)
+            mSeq.set(i, i);
+    }
+
+    static int sizeFor(int n) {
+        int cap = 2;
+        while (cap < n && cap < (1 << 30))
+            cap <<= 1;
+        return cap;
+    }
+
+    int capacity() {
+        return mSlots.length;
+    }
+
+    // number of claimed but not yet released slots
+    int size() {
+        long n = mTail.get() - mHead;
+        return n < 0 ? 0 : (int) Math.min(n, mSlots.length);
+    }
+
+    // producer: claim a free position, -1 if ring is full
+    long claim() {
+        long pos = mTail.get();
+        while (true) {
+            long dif = mSeq.get((int) (pos & mMask)) - pos;
+            if (dif == 0) {
+                if (mTail.compareAndSet(pos, pos + 1))
+                    return pos;
+                pos = mTail.get();
+            } else if (dif < 0) {
+                return -1;
+            } else {
+                pos = mTail.get();
+            }
+        }
+    }
+
+    E get(long pos) {
+        return mSlots[(int) (pos & mMask)];
+    }
+
+    // producer: make a claimed slot visible to consumer
+    void publish(long pos) {
+        mSeq.set((int) (pos & mMask), pos + 1);
+    }
+
+    // consumer: position of next published slot, -1 if none
+    long peek() {
+        long pos = mHead;
+        return mSeq.get((int) (pos & mMask)) == pos + 1 ? pos : -1;
+    }
+
+    // consumer: free the slot returned by peek()
+    void release(long pos) {
+        mSeq.set((int) (pos & mMask), pos + mSlots.length);
+        mHead = pos + 1;
+    }
+}
@@ -0,0 +1,66 @@
+package org.nodewox.client;
+
+//
+// publish settings applied while on a type of network, see Messenger.getNetworkProfile()
+//
+public class NetworkProfile {
+
+    // low latency: every packet on its own, all samples, no compression
+    public static final NetworkProfile WIFI = new NetworkProfile("wifi", 0, 1024, 0, false, 60);
+
+    // fewer and larger messages over the radio: frames gathered for 500ms,
+    // at most 10 packets per second per channel, compressed frames, long keepalive
+    public static final NetworkProfile MOBILE = new NetworkProfile("mobile", 500, 8192, 100, true, 240);
+
+    private final String mName;
+    private final long mFrameWindow;
+    private final int mFrameBudget;
+    private final long mSampleInterval;
+    private final boolean mCompress;
+    private final int mKeepAlive;
+
+    public NetworkProfile(String name, long frameWindow, int frameBudget, long sampleInterval,
+                          boolean compress, int keepAlive) {
+        mName = name;
+        mFrameWindow = Math.max(frameWindow, 0);
+        mFrameBudget = Math.max(frameBudget, 16);
+        mSampleInterval = Math.max(sampleInterval, 0);
+        mCompress = compress;
+        mKeepAlive = Math.max(keepAlive, 0);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    // default of Thing.getFrameWindow(), in ms
+    public long getFrameWindow() {
+        return mFrameWindow;
+    }
+
+    // default of Thing.getFrameBudget(), in bytes
+    public int getFrameBudget() {
+        return mFrameBudget;
+    }
+
+    // min ms between two packets fed into a male channel, closer ones are dropped but the
+    // last of a burst is sent late. 0 for no limit
+    public long getSampleInterval() {
+        return mSampleInterval;
+    }
+
+    // publish frames deflated on <prefix><thing-id>/z when that makes them smaller
+    public boolean isCompress() {
+        return mCompress;
+    }
+
+    // default of Messenger.getMqttKeepAlive(), in seconds
+    public int getKeepAlive() {
+        return mKeepAlive;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
@@ -29,6 +29,9 @@ public abstract class Node {
     private int mID = 0;
     private int mSeq = 0;
 
+    // index of {id:node} for all descendants, kept in sync by setID/addChild/reset
+    private final NodeIndex mIndex = new NodeIndex();
+
     public Node(NxApplication app, String key, Node parent) {
         mApp = app;
         mKey = key;
@@ -53,11 +56,15 @@ public abstract class Node {
     }
 
     public Node getChild(int code) {
-        for (Map.Entry<String, Node> pair : children.entrySet()) {
-            if (pair.getValue().getID() == code)
-                return pair.getValue();
-        }
-        return null;
+        Node n = mIndex.get(code);
+        return (n != null && n.mParent == this) ? n : null;
+    }
+
+    // find this node or a descendant at any depth by ID
+    public Node findNode(int code) {
+        if (code > 0 && code == mID)
+            return this;
+        return mIndex.get(code);
     }
 
     public Node getChild(String key) {
@@ -71,7 +78,15 @@ public abstract class Node {
         assert (node.getParent() == this) : "parent don't match";
         if (node.getParent() == this) {
             assert (node.getKey() != null) : "key!=null for children node";
-            children.put(node.getKey(), node);
+            Node old = children.put(node.getKey(), node);
+            for (Node p = this; p != null; p = p.mParent) {
+                if (old != null && old != node) {
+                    p.unindex(old.mID, old);
+                    p.mIndex.removeAll(old.mIndex);
+                }
+                p.mIndex.put(node.mID, node);
+                p.mIndex.putAll(node.mIndex);
+            }
         }
     }
 
@@ -93,8 +108,23 @@ public abstract class Node {
     }
 
     public void setID(int i) {
-        if (i > 0)
+        if (i > 0 && i != mID) {
+            reindex(mID, i);
             mID = i;
+        }
+    }
+
+    // move this node from old to new ID in the index of every ancestor
+    private void reindex(int old, int id) {
+        for (Node p = mParent; p != null; p = p.mParent) {
+            p.unindex(old, this);
+            p.mIndex.put(id, this);
+        }
+    }
+
+    private void unindex(int id, Node node) {
+        if (mIndex.get(id) == node)
+            mIndex.remove(id);
     }
 
     public String getName() {
@@ -215,6 +245,7 @@ public abstract class Node {
     }
 
     protected void reset() {
+        reindex(mID, 0);
         mID = 0;
     }
 
@@ -263,8 +294,8 @@ public abstract class Node {
         if (children != null && children.length > 0) {
             // request into children
             for (int nid : children) {
-                Node n = getChild(nid);
-                if (n != null) {
+                Node n = findNode(nid);
+                if (n != null && n != this) {
                     Map<String, JSONObject> m2 = n.handleRequest(action, null, null);
                     if (m2 != null)
                         res.putAll(m2);
@@ -0,0 +1,143 @@
+package org.nodewox.client;
+
+//
+// open-addressing map of node ID -> node, IDs are positive so 0 marks a free slot.
+// linear probing with backward-shift deletion, no tombstones. lookups may run on
+// the dispatcher while the tree is configured, so access is synchronized.
+//
+public class NodeIndex {
+
+    private int[] mKeys;
+    private Node[] mNodes;
+    private int mSize = 0;
+
+    public NodeIndex() {
+        this(8);
+    }
+
+    public NodeIndex(int expected) {
+        int cap = 8;
+        while (cap < expected * 2)
+            cap <<= 1;
+        mKeys = new int[cap];
+        mNodes = new Node[cap];
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized Node get(int id) {
+        if (id <= 0)
+            return null;
+
+        int mask = mKeys.length - 1;
+        for (int i = hash(id) & mask; ; i = (i + 1) & mask) {
+            int k = mKeys[i];
+            if (k == id)
+                return mNodes[i];
+            if (k == 0)
+                return null;
+        }
+    }
+
+    public synchronized void put(int id, Node node) {
+        if (id <= 0)
+            return;
+
+        if ((mSize + 1) * 2 > mKeys.length)
+            resize(mKeys.length * 2);
+
+        int mask = mKeys.length - 1;
+        int i = hash(id) & mask;
+        while (mKeys[i] != 0 && mKeys[i] != id)
+            i = (i + 1) & mask;
+
+        if (mKeys[i] == 0)
+            mSize++;
+        mKeys[i] = id;
+        mNodes[i] = node;
+    }
+
+    public synchronized void remove(int id) {
+        if (id <= 0)
+            return;
+
+        int mask = mKeys.length - 1;
+        int i = hash(id) & mask;
+        while (mKeys[i] != id) {
+            if (mKeys[i] == 0)
+                return;
+            i = (i + 1) & mask;
+        }
+
+        // shift following entries of the probe run back into the hole
+        int hole = i;
+        for (int j = (hole + 1) & mask; mKeys[j] != 0; j = (j + 1) & mask) {
+            int home = hash(mKeys[j]) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                mKeys[hole] = mKeys[j];
+                mNodes[hole] = mNodes[j];
+                hole = j;
+            }
+        }
+        mKeys[hole] = 0;
+        mNodes[hole] = null;
+        mSize--;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < mKeys.length; i++) {
+            mKeys[i] = 0;
+            mNodes[i] = null;
+        }
+        mSize = 0;
+    }
+
+    // copy all entries of other into this index
+    public void putAll(NodeIndex other) {
+        int[] keys;
+        Node[] nodes;
+        synchronized (other) {
+            keys = other.mKeys.clone();
+            nodes = other.mNodes.clone();
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0)
+                put(keys[i], nodes[i]);
+        }
+    }
+
+    // remove entries of other which map to the same node here
+    public void removeAll(NodeIndex other) {
+        int[] keys;
+        Node[] nodes;
+        synchronized (other) {
+            keys = other.mKeys.clone();
+            nodes = other.mNodes.clone();
+        }
+        synchronized (this) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0 && get(keys[i]) == nodes[i])
+                    remove(keys[i]);
+            }
+        }
+    }
+
+    private void resize(int cap) {
+        int[] keys = mKeys;
+        Node[] nodes = mNodes;
+        mKeys = new int[cap];
+        mNodes = new Node[cap];
+        mSize = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0)
+                put(keys[i], nodes[i]);
+        }
+    }
+
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
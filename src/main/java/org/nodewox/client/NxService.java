@@ -7,10 +7,14 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.SystemClock;
+import android.telephony.TelephonyManager;
 import android.util.Log;
 
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
@@ -21,11 +25,13 @@ import org.eclipse.paho.client.mqttv3.MqttCallback;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
-import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
 
 public abstract class NxService extends Service {
 
@@ -38,9 +44,45 @@ public abstract class NxService extends Service {
 
     private NxApplication mApp = null;
     private Messenger messenger = null;
-    private MqttAsyncClient mMqttCli = null;
+    // current client and connection state, read without locking by publishers.
+    // only connect(), disconnect() and a handover replace the client, under the service lock
+    private volatile MqttAsyncClient mMqttCli = null;
+    private volatile boolean mConnected = false;
+    // client disconnected by disconnect() and not yet closed. not under the service lock,
+    // the disconnect completes on the client's callback thread which connect() may wait for
+    private final AtomicReference<MqttAsyncClient> mClosing = new AtomicReference<>();
+
+    // bounds publishes in flight at the mqtt client, per qos
+    private volatile InflightWindow mWindow = null;
+
+    // learner of the connection, told about every packet
+    private volatile KeepAliveLearner mLearner = null;
     private NetworkType mNetworkType = NetworkType.NONE;
 
+    // network the current connection was made on, and handover in progress
+    private NetworkType mConnNetwork = NetworkType.NONE;
+    private MqttAsyncClient mHandoverCli = null;
+    private long mChangeAt = 0;      // first network change not yet settled
+    private long mHandoverSince = 0; // network change of a break-before-make handover
+
+    // cache key of the socket factory of last connect
+    private String mSSLKey = null;
+
+    // topics subscribed by this service, renewed on the new connection of a handover
+    private final LinkedHashMap<String, Integer> mSubscriptions = new LinkedHashMap<>();
+
+    // handover stats, ms
+    private volatile int mHandovers = 0;
+    private volatile long mLastHandoverLatency = 0;
+    private volatile long mMaxHandoverLatency = 0;
+
+    private final Runnable mSettleTask = new Runnable() {
+        @Override
+        public void run() {
+            onNetworkSettled();
+        }
+    };
+
     // network state change listener
     private BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
@@ -68,6 +110,7 @@ public abstract class NxService extends Service {
 
                 if (ntype != mNetworkType) {
                     mNetworkType = ntype;
+                    messenger.onNetworkType(ntype);
                     onNetworkChange();
                 }
             }
@@ -182,23 +225,43 @@ public abstract class NxService extends Service {
         return mNetworkType;
     }
 
+    // network changes are acted on once the network stays the same for
+    // getNetworkDebounce() ms, or at once while not connected
     protected void onNetworkChange() {
+        if (mChangeAt == 0)
+            mChangeAt = SystemClock.elapsedRealtime();
+
+        messenger.removeCallbacks(mSettleTask);
+        if (isMqttConnected())
+            messenger.postDelayed(mSettleTask, messenger.getNetworkDebounce());
+        else
+            onNetworkSettled();
+    }
+
+    private void onNetworkSettled() {
+        long since = mChangeAt;
+        mChangeAt = 0;
+
         switch (mNetworkType) {
             case WIFI:
             case MOBILE:
                 // network available, try connect
                 Log.v("nodewox/servce", "network available");
-                if (messenger.getAddr().length() > 0)
+                if (messenger.getAddr().length() == 0)
+                    break;
+                if (isMqttConnected() && mNetworkType != mConnNetwork)
+                    handover(since);
+                else
                     connect();
                 break;
             case NONE:
-                // network unavailable
+                // network unavailable, the connection lost callback takes over
                 break;
         }
     }
 
-    // emit mqtt event
-    private synchronized void _event(EventType eventType, Bundle data, Object ctx, Throwable error) {
+    // emit mqtt event, safe to call from any thread without the service lock
+    private void _event(EventType eventType, Bundle data, Object ctx, Throwable error) {
         Node node = mApp.getRootNode();
         if (node instanceof MessageSensible) {
             Handler h = ((MessageSensible) node).getMessenger();
@@ -214,8 +277,7 @@ public abstract class NxService extends Service {
                 data.putString("error", error.getMessage());
             }
 
-            Message m = new Message();
-            m.what = eventType.ordinal();
+            Message m = Message.obtain(h, eventType.ordinal());
             if (data != null)
                 m.setData(data);
 
@@ -223,25 +285,43 @@ public abstract class NxService extends Service {
         }
     }
 
-    public synchronized boolean connect() {
-        if (mMqttCli != null && mMqttCli.isConnected()) {
-            return true;  // we are already connected
+    // network for the keepalive learner: its type plus SSID or mobile carrier
+    protected String getNetworkKey() {
+        switch (mNetworkType) {
+            case WIFI:
+                WifiManager wm = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+                WifiInfo info = wm == null ? null : wm.getConnectionInfo();
+                return "wifi:" + (info == null ? "" : info.getSSID());
+            case MOBILE:
+                TelephonyManager tm = (TelephonyManager) getSystemService(Context.TELEPHONY_SERVICE);
+                return "mobile:" + (tm == null ? "" : tm.getNetworkOperator());
+            default:
+                return "none";
         }
+    }
 
-        if (messenger.getAddr().length() == 0) {
-            return false;  // invalid addr
-        }
+    private KeepAliveLearner getKeepAliveLearner() {
+        return messenger.isKeepAliveAdaptive() ? messenger.getKeepAliveLearner() : null;
+    }
 
-        messenger.getNode().onBeforeConnect();
+    private void keepAliveConnected(String network, MqttConnectOptions opts) {
+        KeepAliveLearner learner = getKeepAliveLearner();
+        if (learner != null)
+            learner.onConnected(network, opts.getKeepAliveInterval());
+        mLearner = learner;
+    }
 
-        _event(EventType.CONNECTING, null, null, null);
+    // a packet went over the connection, so it was not idle
+    private void activity() {
+        KeepAliveLearner learner = mLearner;
+        if (learner != null)
+            learner.onActivity();
+    }
 
+    private MqttConnectOptions buildOptions(String cid, String network) {
         // setup connect options
         MqttConnectOptions opts = new MqttConnectOptions();
 
-        String cid = messenger.getMqttClientId();
-        if (cid == null) cid = "";
-
         String username = messenger.getUsername();
         String password = messenger.getPassword();
         if (username.length() > 0) {
@@ -254,46 +334,110 @@ public abstract class NxService extends Service {
         else
             opts.setCleanSession(messenger.isMqttClear());
 
-        opts.setKeepAliveInterval(messenger.getMqttKeepAlive());
+        int keepAlive = messenger.getMqttKeepAlive();
+        KeepAliveLearner learner = getKeepAliveLearner();
+        if (learner != null)
+            keepAlive = learner.select(network, keepAlive);
+        opts.setKeepAliveInterval(keepAlive);
+        opts.setMaxInflight(Math.max(messenger.getInflightWindow(1) + messenger.getInflightWindow(2), 1));
 
         String will = messenger.getMqttWillTopic();
         if (will != null && will.length() > 0)
             opts.setWill(will, messenger.getMqttWillPayload(), messenger.getMqttWillQos(), false);
 
-        SocketFactory sf = Utils.makeSSLSocketFactory(
-                messenger.getCA(), messenger.getCAPass(),
-                messenger.getCert(), messenger.getCertPass()
-        );
+        byte[] ca = messenger.getCA();
+        byte[] cert = messenger.getCert();
+        String sslKey = Utils.sslKey(ca, messenger.getCAPass(), cert, messenger.getCertPass());
+        if (mSSLKey != null && !mSSLKey.equals(sslKey))
+            Utils.invalidateSSLSocketFactory(mSSLKey);  // cert changed, the old one is no use
+        mSSLKey = sslKey;
+
+        SSLSocketFactory sf = Utils.getSSLSocketFactory(ca, messenger.getCAPass(), cert, messenger.getCertPass());
         if (sf != null)
-            opts.setSocketFactory(sf);
+            opts.setSocketFactory(new TlsSocketFactory(sf, TlsSocketFactory.MQTT));
+
+        return opts;
+    }
+
+    public synchronized boolean connect() {
+        if (isMqttConnected()) {
+            return true;  // we are already connected
+        }
+
+        if (messenger.getAddr().length() == 0) {
+            return false;  // invalid addr
+        }
+
+        messenger.getNode().onBeforeConnect();
+
+        _event(EventType.CONNECTING, null, null, null);
+
+        String cid = messenger.getMqttClientId();
+        if (cid == null) cid = "";
+        final String network = getNetworkKey();
+        final MqttConnectOptions opts = buildOptions(cid, network);
+
+        // release previous client (and its persistence) after a lost connection, and
+        // one still disconnecting, so that its journal is closed before a new one opens
+        mConnected = false;
+        if (mMqttCli != null)
+            close(mMqttCli);
+        MqttAsyncClient closing = mClosing.getAndSet(null);
+        if (closing != null) {
+            try {
+                closing.disconnectForcibly(0, 1000);
+            } catch (MqttException e) {
+                Log.w("nodewox/service", "disconnect mqtt client: " + e.getMessage());
+            }
+            close(closing);
+        }
 
         // create mqtt client
+        final MqttAsyncClient cli;
         try {
-            mMqttCli = new MqttAsyncClient(messenger.getAddr(), cid, new MemoryPersistence());
+            cli = new MqttAsyncClient(messenger.getAddr(), cid, messenger.getMqttPersistence());
         } catch (MqttException e) {
             mMqttCli = null;
             _event(EventType.CONNECT_FAIL, null, null, e);
             return false;
         }
+        mMqttCli = cli;
+        mConnNetwork = mNetworkType;
 
         // setup mqtt callback listener
-        mMqttCli.setCallback(new LocalMqttCallback(this));
+        cli.setCallback(new LocalMqttCallback(this, cli));
 
         try {
-            mMqttCli.connect(opts, null, new IMqttActionListener() {
+            cli.connect(opts, null, new IMqttActionListener() {
                 @Override
                 public void onSuccess(IMqttToken token) {
                     Log.v("nodewox/service", "connected");
+                    if (mMqttCli == cli) {
+                        getWindow().reset();
+                        mConnected = true;
+                        keepAliveConnected(network, opts);
+                        if (mHandoverSince > 0) {
+                            handedOver(mHandoverSince);
+                            mHandoverSince = 0;
+                        }
+                    }
                     _event(EventType.CONNECT_SUCCESS, null, token.getUserContext(), null);
+                    pump();
                 }
 
                 @Override
                 public void onFailure(IMqttToken token, Throwable e) {
-                    mMqttCli = null;
+                    synchronized (NxService.this) {
+                        if (mMqttCli == cli)
+                            mMqttCli = null;
+                    }
+                    close(cli);
                     _event(EventType.CONNECT_FAIL, null, token.getUserContext(), e);
                 }
             });
         } catch (MqttException e) {
+            mMqttCli = null;
+            close(cli);
             _event(EventType.CONNECT_FAIL, null, null, e);
         }
 
@@ -301,28 +445,231 @@ public abstract class NxService extends Service {
     }
 
     public synchronized void disconnect() {
+        messenger.removeCallbacks(mSettleTask);
+        mChangeAt = 0;
+        mHandoverSince = 0;
+        if (mHandoverCli != null) {
+            retire(mHandoverCli, 0);
+            mHandoverCli = null;
+        }
+
+        KeepAliveLearner learner = getKeepAliveLearner();
+        if (learner != null)
+            learner.onDisconnected();
+
         if (mMqttCli != null) {
-            if (mMqttCli.isConnected()) {
+            final MqttAsyncClient cli = mMqttCli;
+            mConnected = false;
+            if (cli.isConnected()) {
                 messenger.getNode().onBeforeDisconnect();
+                // closed once disconnected, or by the next connect() if that comes first
+                mClosing.set(cli);
                 try {
-                    mMqttCli.disconnect();
-                    mMqttCli.close();
+                    cli.disconnect(null, new IMqttActionListener() {
+                        @Override
+                        public void onSuccess(IMqttToken token) {
+                            closed(cli);
+                        }
+
+                        @Override
+                        public void onFailure(IMqttToken token, Throwable e) {
+                            closed(cli);
+                        }
+                    });
                 } catch (MqttException e) {
-                    e.printStackTrace();
+                    Log.w("nodewox/service", "disconnect mqtt client: " + e.getMessage());
+                    closed(cli);
                 }
-            }
+            } else
+                close(cli);
 
             mMqttCli = null;
+            synchronized (mSubscriptions) {
+                mSubscriptions.clear();
+            }
+            failPending("disconnected");
             _event(EventType.CONNECT_CLOSE, null, null, null);
         }
     }
 
-    public synchronized boolean isMqttConnected() {
-        return (mMqttCli != null && mMqttCli.isConnected());
+    // move the connection to the current network
+    private synchronized void handover(final long since) {
+        final MqttAsyncClient old = mMqttCli;
+        if (old == null || mHandoverCli != null)
+            return;
+
+        Log.v("nodewox/service", "network handover " + mConnNetwork + " -> " + mNetworkType);
+
+        String cid = messenger.getMqttClientId();
+        if (cid == null) cid = "";
+
+        if (cid.length() > 0 || messenger.isMqttPersistent()) {
+            // a second connection under the same client id makes the broker take the
+            // session over and drop the old one, and its journal can't be opened twice:
+            // let the old connection finish its in-flight messages, then make the new one
+            mHandoverSince = since;
+            mConnected = false;
+            try {
+                old.disconnect(messenger.getHandoverQuiesce(), null, new IMqttActionListener() {
+                    @Override
+                    public void onSuccess(IMqttToken token) {
+                        connect();
+                    }
+
+                    @Override
+                    public void onFailure(IMqttToken token, Throwable e) {
+                        connect();
+                    }
+                });
+            } catch (MqttException e) {
+                connect();
+            }
+            return;
+        }
+
+        // broker assigned client id: both connections can be up at once
+        final MqttAsyncClient next;
+        try {
+            next = new MqttAsyncClient(messenger.getAddr(), cid, messenger.getMqttPersistence());
+        } catch (MqttException e) {
+            Log.w("nodewox/service", "handover: " + e.getMessage());
+            return;
+        }
+        next.setCallback(new LocalMqttCallback(this, next));
+        mHandoverCli = next;
+
+        final String network = getNetworkKey();
+        final MqttConnectOptions opts = buildOptions(cid, network);
+        try {
+            next.connect(opts, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken token) {
+                    if (switchClient(old, next)) {
+                        keepAliveConnected(network, opts);
+                        handedOver(since);
+                        pump();
+                    }
+                }
+
+                @Override
+                public void onFailure(IMqttToken token, Throwable e) {
+                    Log.w("nodewox/service", "handover failed: " + (e == null ? "" : e.getMessage()));
+                    synchronized (NxService.this) {
+                        if (mHandoverCli == next)
+                            mHandoverCli = null;
+                    }
+                    retire(next, 0);
+                }
+            });
+        } catch (MqttException e) {
+            mHandoverCli = null;
+            Log.w("nodewox/service", "handover: " + e.getMessage());
+        }
     }
 
-    public synchronized void subscribe(String[] topics, Serializable ctx) {
-        if (!isMqttConnected()) {
+    // new connection is up: make it current, renew subscriptions and let the old one
+    // finish its in-flight messages
+    private synchronized boolean switchClient(MqttAsyncClient old, MqttAsyncClient next) {
+        if (mHandoverCli == next)
+            mHandoverCli = null;
+
+        if (mMqttCli != old) {
+            // connection changed meanwhile
+            retire(next, 0);
+            return false;
+        }
+
+        mMqttCli = next;
+        mConnNetwork = mNetworkType;
+        mConnected = true;
+
+        String[] topics;
+        int[] qos;
+        synchronized (mSubscriptions) {
+            topics = mSubscriptions.keySet().toArray(new String[mSubscriptions.size()]);
+            qos = new int[topics.length];
+            for (int i = 0; i < topics.length; i++)
+                qos[i] = mSubscriptions.get(topics[i]);
+        }
+        if (topics.length > 0) {
+            try {
+                next.subscribe(topics, qos);
+            } catch (MqttException e) {
+                Log.w("nodewox/service", "handover subscribe: " + e.getMessage());
+            }
+        }
+
+        retire(old, messenger.getHandoverQuiesce());
+        return true;
+    }
+
+    private static void retire(final MqttAsyncClient cli, long quiesce) {
+        try {
+            cli.disconnect(quiesce, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken token) {
+                    close(cli);
+                }
+
+                @Override
+                public void onFailure(IMqttToken token, Throwable e) {
+                    close(cli);
+                }
+            });
+        } catch (MqttException e) {
+            close(cli);
+        }
+    }
+
+    private void closed(MqttAsyncClient cli) {
+        if (mClosing.compareAndSet(cli, null))
+            close(cli);
+    }
+
+    private static void close(MqttAsyncClient cli) {
+        try {
+            cli.close();
+        } catch (MqttException e) {
+            Log.w("nodewox/service", "close mqtt client: " + e.getMessage());
+        }
+    }
+
+    private void handedOver(long since) {
+        long ms = since > 0 ? SystemClock.elapsedRealtime() - since : 0;
+        mHandovers++;
+        mLastHandoverLatency = ms;
+        if (ms > mMaxHandoverLatency)
+            mMaxHandoverLatency = ms;
+        Log.v("nodewox/service", "handover done in " + ms + "ms");
+    }
+
+    public int getHandoverCount() {
+        return mHandovers;
+    }
+
+    // ms from the first network change to the connection being up on the new network
+    public long getLastHandoverLatency() {
+        return mLastHandoverLatency;
+    }
+
+    public long getMaxHandoverLatency() {
+        return mMaxHandoverLatency;
+    }
+
+    public boolean isMqttConnected() {
+        return mConnected;
+    }
+
+    public void subscribe(String[] topics, Serializable ctx) {
+        int[] qos = new int[topics.length];
+        for (int i = 0; i < topics.length; i++)
+            qos[i] = 2;
+        subscribe(topics, qos, ctx);
+    }
+
+    public void subscribe(String[] topics, final int[] qos, Serializable ctx) {
+        MqttAsyncClient cli = mMqttCli;
+        if (!mConnected || cli == null) {
             Bundle data = new Bundle();
             data.putStringArray("topics", topics);
             _event(EventType.SUB_FAIL, data, ctx, new Throwable("not connected"));
@@ -330,13 +677,15 @@ public abstract class NxService extends Service {
         }
 
         try {
-            int[] qos = new int[topics.length];
-            for (int i = 0; i < topics.length; i++)
-                qos[i] = 2;
-
-            mMqttCli.subscribe(topics, qos, ctx, new IMqttActionListener() {
+            cli.subscribe(topics, qos, ctx, new IMqttActionListener() {
                 @Override
                 public void onSuccess(IMqttToken token) {
+                    // kept with the qos asked for, a handover subscribes again with it
+                    String[] subscribed = token.getTopics();
+                    synchronized (mSubscriptions) {
+                        for (int i = 0; i < subscribed.length; i++)
+                            mSubscriptions.put(subscribed[i], qos[i]);
+                    }
                     Bundle data = new Bundle();
                     data.putStringArray("topics", token.getTopics());
                     _event(EventType.SUB_SUCCESS, data, token.getUserContext(), null);
@@ -357,8 +706,9 @@ public abstract class NxService extends Service {
         }
     }
 
-    public synchronized void unsubscribe(String[] topics, Serializable ctx) {
-        if (!isMqttConnected()) {
+    public void unsubscribe(String[] topics, Serializable ctx) {
+        MqttAsyncClient cli = mMqttCli;
+        if (!mConnected || cli == null) {
             Bundle data = new Bundle();
             data.putStringArray("topics", topics);
             _event(EventType.UNSUB_FAIL, data, ctx, new Throwable("not connected"));
@@ -366,9 +716,12 @@ public abstract class NxService extends Service {
         }
 
         try {
-            mMqttCli.unsubscribe(topics, ctx, new IMqttActionListener() {
+            cli.unsubscribe(topics, ctx, new IMqttActionListener() {
                 @Override
                 public void onSuccess(IMqttToken token) {
+                    synchronized (mSubscriptions) {
+                        mSubscriptions.keySet().removeAll(Arrays.asList(token.getTopics()));
+                    }
                     Bundle data = new Bundle();
                     data.putStringArray("topics", token.getTopics());
                     _event(EventType.UNSUB_SUCCESS, data, token.getUserContext(), null);
@@ -390,49 +743,177 @@ public abstract class NxService extends Service {
     }
 
     public void publish(String topic, byte[] payload, int qos, boolean retained, Serializable ctx) {
+        publish(topic, payload, qos, retained, ctx, Messenger.Priority.CONTROL);
+    }
+
+    public void publish(String topic, byte[] payload, int qos, boolean retained, Serializable ctx,
+                        Messenger.Priority priority) {
         if (!isMqttConnected()) {
-            _event(EventType.PUB_FAIL, null, ctx, new Throwable("not connected"));
+            // outbox reports the message itself if it refuses it
+            messenger.offerOutbox(topic, payload, qos, retained, ctx);
             return;
         }
 
+        if (!offer(topic, payload, qos, retained, ctx, priority))
+            _event(EventType.PUB_FAIL, null, ctx, new Throwable("outbound window full"));
+    }
+
+    // hand a message to the in-flight window without blocking. it is sent at once, or
+    // queued while the window of its qos is full. return false if not connected or
+    // the pending queue is full too, the message is not taken then
+    public boolean offer(String topic, byte[] payload, int qos, boolean retained, Serializable ctx,
+                         Messenger.Priority priority) {
+        return admit(priority, topic, payload, qos, retained, ctx, null);
+    }
+
+    // publish and return a token completing on delivery, failed at once if not connected
+    // or the outbound window is full
+    public DeliveryToken publishAsync(String topic, byte[] payload, int qos, boolean retained) {
+        DeliveryToken dt = new DeliveryToken(topic, qos);
+        if (!isMqttConnected())
+            dt.complete(new Throwable("not connected"));
+        else if (!admit(Messenger.Priority.CONTROL, topic, payload, qos, retained, null, dt))
+            dt.complete(new Throwable("outbound window full"));
+        return dt;
+    }
+
+    private boolean admit(Messenger.Priority priority, String topic, byte[] payload, int qos, boolean retained,
+                          Serializable ctx, DeliveryToken dt) {
+        MqttAsyncClient cli = mMqttCli;
+        if (!mConnected || cli == null)
+            return false;
+
+        InflightWindow w = getWindow();
+        switch (w.admit(priority, topic, payload, qos, retained, ctx, dt)) {
+            case InflightWindow.SEND:
+                send(cli, w, topic, payload, qos, retained, ctx, dt);
+                return true;
+
+            case InflightWindow.QUEUED:
+                if (w.markBlocked())
+                    messenger.onOutboundWindow(true);
+                return true;
+
+            default:
+                if (w.markBlocked())
+                    messenger.onOutboundWindow(true);
+                return false;
+        }
+    }
+
+    private void send(MqttAsyncClient cli, final InflightWindow w, String topic, byte[] payload,
+                      final int qos, boolean retained, Serializable ctx, final DeliveryToken dt) {
         MqttMessage msg = new MqttMessage();
         msg.setQos(qos);
         msg.setRetained(retained);
         if (payload != null && payload.length > 0)
             msg.setPayload(payload);
 
+        activity();
         try {
-            mMqttCli.publish(topic, msg, ctx, new IMqttActionListener() {
+            cli.publish(topic, msg, ctx, new IMqttActionListener() {
                 @Override
                 public void onSuccess(IMqttToken token) {
+                    w.release(qos);
+                    if (dt != null)
+                        dt.complete(null);
+                    pump();
                 }
 
                 @Override
                 public void onFailure(IMqttToken token, Throwable e) {
-                    _event(EventType.PUB_FAIL, null, token.getUserContext(), e);
+                    w.release(qos);
+                    if (dt != null)
+                        dt.complete(e);
+                    else
+                        _event(EventType.PUB_FAIL, null, token.getUserContext(), e);
+                    pump();
                 }
             });
 
         } catch (MqttException e) {
-            _event(EventType.PUB_FAIL, null, ctx, e);
+            w.release(qos);
+            if (dt != null)
+                dt.complete(e);
+            else
+                _event(EventType.PUB_FAIL, null, ctx, e);
         }
     }
 
-    public boolean publishSync(String topic, byte[] payload, int qos, boolean retained, int timeout) {
-        if (!isMqttConnected())
-            return false;
+    // send pending messages while their window has room
+    private void pump() {
+        MqttAsyncClient cli = mMqttCli;
+        if (!mConnected || cli == null)
+            return;
 
-        MqttMessage msg = new MqttMessage();
-        msg.setQos(qos);
-        msg.setRetained(retained);
-        if (payload != null && payload.length > 0)
-            msg.setPayload(payload);
+        InflightWindow w = getWindow();
+        InflightWindow.Pending p;
+        while ((p = w.next()) != null)
+            send(cli, w, p.topic, p.payload, p.qos, p.retained, p.ctx, p.token);
 
+        if (w.markOpen())
+            messenger.onOutboundWindow(false);
+
+        // let channel packets held back for the window follow
+        messenger.dispatchChannels();
+    }
+
+    // fail messages still waiting for the window
+    private void failPending(String reason) {
+        InflightWindow w = mWindow;
+        if (w == null)
+            return;
+
+        for (InflightWindow.Pending p : w.takePending()) {
+            if (p.token != null)
+                p.token.complete(new Throwable(reason));
+            else
+                _event(EventType.PUB_FAIL, null, p.ctx, new Throwable(reason));
+        }
+        if (w.markOpen())
+            messenger.onOutboundWindow(false);
+    }
+
+    private InflightWindow getWindow() {
+        InflightWindow w = mWindow;
+        if (w == null) {
+            synchronized (this) {
+                if (mWindow == null)
+                    mWindow = new InflightWindow(
+                            messenger.getInflightWindow(0),
+                            messenger.getInflightWindow(1),
+                            messenger.getInflightWindow(2),
+                            messenger.getPendingLimit(),
+                            messenger.getControlReserve(),
+                            messenger.getControlWeight());
+                w = mWindow;
+            }
+        }
+        return w;
+    }
+
+    public int getInflightCount(int qos) {
+        InflightWindow w = mWindow;
+        return w == null ? 0 : w.getInflight(qos);
+    }
+
+    // whether a publish of priority and qos would go to the mqtt client at once
+    public boolean hasRoom(Messenger.Priority priority, int qos) {
+        InflightWindow w = getWindow();
+        return w.hasRoom(priority, qos);
+    }
+
+    public int getPendingCount() {
+        InflightWindow w = mWindow;
+        return w == null ? 0 : w.getPending();
+    }
+
+    public boolean publishSync(String topic, byte[] payload, int qos, boolean retained, int timeout) {
+        DeliveryToken dt = publishAsync(topic, payload, qos, retained);
         try {
-            IMqttDeliveryToken token = mMqttCli.publish(topic, payload, qos, retained);
-            token.waitForCompletion(timeout);
-            return true;
-        } catch (MqttException e) {
+            return dt.waitForCompletion(timeout) && dt.isSuccess();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return false;
         }
     }
@@ -460,31 +941,40 @@ public abstract class NxService extends Service {
 
     private static class LocalMqttCallback implements MqttCallback {
         private final NxService mCtx;
+        private final MqttAsyncClient mCli;
 
-        public LocalMqttCallback(NxService ctx) {
+        public LocalMqttCallback(NxService ctx, MqttAsyncClient cli) {
             mCtx = ctx;
+            mCli = cli;
         }
 
         @Override
         public void connectionLost(Throwable e) {
+            // a client retired by handover, or replaced meanwhile
+            if (mCtx.mMqttCli != mCli)
+                return;
+            mCtx.mConnected = false;
+            KeepAliveLearner learner = mCtx.getKeepAliveLearner();
+            if (learner != null) {
+                // a missed ping response, not a network switch or a broker going away
+                boolean timeout = e instanceof MqttException
+                        && ((MqttException) e).getReasonCode() == MqttException.REASON_CODE_CLIENT_TIMEOUT;
+                learner.onConnectionLost(timeout && mCtx.mNetworkType == mCtx.mConnNetwork,
+                        mCtx.getNetworkKey());
+            }
             mCtx._event(EventType.CONNECT_LOST, null, null, e);
         }
 
         @Override
         public void messageArrived(String topic, MqttMessage msg) throws Exception {
-            Bundle data = new Bundle();
-            data.putString("topic", topic);
-            if (msg.getPayload() != null)
-                data.putByteArray("payload", msg.getPayload());
-            data.putInt("qos", msg.getQos());
-            data.putBoolean("duplicate", msg.isDuplicate());
-            data.putBoolean("retained", msg.isRetained());
-
-            mCtx._event(EventType.MESSAGE, data, null, null);
+            mCtx.activity();
+            if (mCtx.messenger != null)
+                mCtx.messenger.postInbound(topic, msg.getPayload(), msg.getQos(), msg.isDuplicate(), msg.isRetained());
         }
 
         @Override
         public void deliveryComplete(IMqttDeliveryToken token) {
+            mCtx.activity();
             mCtx._event(EventType.PUB_COMPLETE, null, token.getUserContext(), null);
         }
     }
@@ -0,0 +1,214 @@
+package org.nodewox.client;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+
+//
+// bounded store-and-forward queue for publishes made while offline.
+//
+// entries are kept in one FIFO for drain order and in a deque per topic for the
+// per-channel limits. an entry evicted through its topic is marked dead and skipped
+// when it reaches the head of the FIFO, or purged once dead entries outnumber live ones.
+//
+public class OutboundQueue {
+
+    private final ArrayDeque<Entry> mQueue = new ArrayDeque<>();
+    private final HashMap<String, ArrayDeque<Entry>> mTopics = new HashMap<>();
+    private DropListener mListener = null;
+
+    private int mSize = 0;  // live entries
+    private int mDead = 0;  // evicted entries still in the FIFO
+    private long mDropped = 0;
+    private long mExpired = 0;
+
+    public void setDropListener(DropListener l) {
+        mListener = l;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    public synchronized long getExpiredCount() {
+        return mExpired;
+    }
+
+    // queue an entry, capacity is per topic and limit for the whole queue.
+    // return false if the entry itself was refused.
+    public synchronized boolean offer(Entry e, int capacity, DropPolicy policy, int limit) {
+        if (capacity <= 0 || limit <= 0) {
+            drop(e, "not connected");
+            return false;
+        }
+
+        ArrayDeque<Entry> tq = mTopics.get(e.topic);
+        if (tq == null) {
+            tq = new ArrayDeque<>();
+            mTopics.put(e.topic, tq);
+        }
+
+        if (policy == DropPolicy.CONFLATE) {
+            while (!tq.isEmpty())
+                evict(tq.pollFirst(), "conflated");
+        } else if (tq.size() >= capacity) {
+            if (policy == DropPolicy.DROP_NEWEST) {
+                drop(e, "outbound queue full");
+                return false;
+            }
+            while (tq.size() >= capacity)
+                evict(tq.pollFirst(), "outbound queue full");
+        }
+
+        // queue wide limit always drops the oldest entry
+        while (mSize >= limit) {
+            Entry old = pollLive();
+            if (old == null)
+                break;
+            detach(old);
+            drop(old, "outbound queue full");
+        }
+
+        tq.addLast(e);
+        mQueue.addLast(e);
+        mSize++;
+
+        if (mDead > mSize)
+            purge();
+        return true;
+    }
+
+    // return next entry not yet expired at time now, or null if queue is empty
+    public synchronized Entry poll(long now) {
+        while (true) {
+            Entry e = pollLive();
+            if (e == null)
+                return null;
+
+            detach(e);
+            if (e.expireAt > 0 && e.expireAt <= now) {
+                mExpired++;
+                if (mListener != null)
+                    mListener.onDrop(e, "expired");
+                continue;
+            }
+            return e;
+        }
+    }
+
+    public synchronized void clear() {
+        while (true) {
+            Entry e = pollLive();
+            if (e == null)
+                break;
+            detach(e);
+            drop(e, "outbound queue cleared");
+        }
+        mQueue.clear();
+        mDead = 0;
+        mTopics.clear();
+    }
+
+    private Entry pollLive() {
+        Entry e;
+        while ((e = mQueue.pollFirst()) != null) {
+            if (!e.dead)
+                return e;
+            mDead--;
+        }
+        return null;
+    }
+
+    // unlink dead entries and their payloads from the FIFO
+    private void purge() {
+        Iterator<Entry> it = mQueue.iterator();
+        while (it.hasNext()) {
+            if (it.next().dead)
+                it.remove();
+        }
+        mDead = 0;
+    }
+
+    // remove a live entry, just taken from the FIFO head, from its topic deque
+    private void detach(Entry e) {
+        ArrayDeque<Entry> tq = mTopics.get(e.topic);
+        if (tq != null) {
+            tq.remove(e);
+            if (tq.isEmpty())
+                mTopics.remove(e.topic);
+        }
+        mSize--;
+    }
+
+    // drop a live entry still linked in the FIFO
+    private void evict(Entry e, String reason) {
+        e.dead = true;
+        mSize--;
+        mDead++;
+        drop(e, reason);
+    }
+
+    private void drop(Entry e, String reason) {
+        mDropped++;
+        if (mListener != null)
+            mListener.onDrop(e, reason);
+    }
+
+    public enum DropPolicy {DROP_OLDEST, DROP_NEWEST, CONFLATE}
+
+    public interface DropListener {
+        void onDrop(Entry e, String reason);
+    }
+
+    public static class Entry {
+        private final String topic;
+        private final byte[] payload;
+        private final int qos;
+        private final boolean retained;
+        private final Serializable ctx;
+        private final long expireAt;  // 0 for never
+        private boolean dead = false;
+
+        public Entry(String topic, byte[] payload, int qos, boolean retained, Serializable ctx, long expireAt) {
+            this.topic = topic;
+            this.payload = payload;
+            this.qos = qos;
+            this.retained = retained;
+            this.ctx = ctx;
+            this.expireAt = expireAt;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public int getQos() {
+            return qos;
+        }
+
+        public boolean isRetained() {
+            return retained;
+        }
+
+        public Serializable getContext() {
+            return ctx;
+        }
+
+        public long getExpireAt() {
+            return expireAt;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package org.nodewox.client;
+
+import java.util.Random;
+
+//
+// schedules reconnect attempts with exponential backoff:
+//
+//   delay(n) = min(max, initial * multiplier^n) * (1 +/- jitter)
+//
+// where n counts the failed attempts since the last success. time and timer are
+// behind Clock and Timer so the schedule can be driven by a fake clock.
+//
+public class ReconnectScheduler {
+
+    private final Clock mClock;
+    private final Timer mTimer;
+    private final Random mRandom;
+    private final Runnable mAction;
+
+    private final long mInitial;
+    private final long mMax;
+    private final double mMultiplier;
+    private final double mJitter;
+
+    private final Runnable mAttempt = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ReconnectScheduler.this) {
+                mScheduled = false;
+                mTotalAttempts++;
+                mLastAttemptAt = mClock.now();
+            }
+            mAction.run();
+        }
+    };
+
+    private boolean mScheduled = false;
+    private int mFailures = 0;        // since last success
+    private long mTotalAttempts = 0;
+    private long mLastDelay = 0;
+    private long mNextAttemptAt = 0;
+    private long mLastAttemptAt = 0;
+    private long mDownSince = 0;      // time of first failure, 0 while connected
+    private long mLastDowntime = 0;
+    private long mMaxDowntime = 0;
+
+    public ReconnectScheduler(Clock clock, Timer timer, Random random, Runnable action,
+                              long initial, long max, double multiplier, double jitter) {
+        mClock = clock;
+        mTimer = timer;
+        mRandom = random;
+        mAction = action;
+        mInitial = Math.max(initial, 1);
+        mMax = Math.max(max, mInitial);
+        mMultiplier = Math.max(multiplier, 1);
+        mJitter = Math.min(Math.max(jitter, 0), 1);
+    }
+
+    // connection failed or was lost, schedule next attempt
+    public synchronized void onFailure() {
+        if (mDownSince == 0)
+            mDownSince = mClock.now();
+
+        long delay = delayFor(mFailures);
+        mFailures++;
+
+        if (mScheduled)
+            mTimer.cancel(mAttempt);
+        mScheduled = true;
+        mLastDelay = delay;
+        mNextAttemptAt = mClock.now() + delay;
+        mTimer.schedule(mAttempt, delay);
+    }
+
+    // connected, forget the backoff
+    public synchronized void onSuccess() {
+        cancel();
+        if (mDownSince > 0) {
+            mLastDowntime = mClock.now() - mDownSince;
+            mMaxDowntime = Math.max(mMaxDowntime, mLastDowntime);
+            mDownSince = 0;
+        }
+        mFailures = 0;
+    }
+
+    // stop retrying, e.g. after an explicit disconnect. backoff state is kept
+    public synchronized void cancel() {
+        if (mScheduled) {
+            mTimer.cancel(mAttempt);
+            mScheduled = false;
+        }
+        mNextAttemptAt = 0;
+    }
+
+    public synchronized void reset() {
+        cancel();
+        mFailures = 0;
+        mDownSince = 0;
+    }
+
+    // delay before attempt after n failures, with jitter
+    long delayFor(int n) {
+        double base = mInitial;
+        for (int i = 0; i < n && base < mMax; i++)
+            base *= mMultiplier;
+        base = Math.min(base, mMax);
+
+        double j = mJitter * (2 * mRandom.nextDouble() - 1);
+        return Math.max(1, Math.min(mMax, Math.round(base * (1 + j))));
+    }
+
+    public synchronized boolean isScheduled() {
+        return mScheduled;
+    }
+
+    public synchronized int getFailures() {
+        return mFailures;
+    }
+
+    public synchronized long getTotalAttempts() {
+        return mTotalAttempts;
+    }
+
+    public synchronized long getLastDelay() {
+        return mLastDelay;
+    }
+
+    // clock time of next attempt, 0 if none is scheduled
+    public synchronized long getNextAttemptAt() {
+        return mNextAttemptAt;
+    }
+
+    public synchronized long getLastAttemptAt() {
+        return mLastAttemptAt;
+    }
+
+    // time from first failure to reconnect, of the last outage and of the longest one
+    public synchronized long getLastDowntime() {
+        return mLastDowntime;
+    }
+
+    public synchronized long getMaxDowntime() {
+        return mMaxDowntime;
+    }
+
+    // time in ms, monotonic
+    public interface Clock {
+        long now();
+    }
+
+    public interface Timer {
+        void schedule(Runnable task, long delay);
+
+        void cancel(Runnable task);
+    }
+}
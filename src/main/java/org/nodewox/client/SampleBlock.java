@@ -0,0 +1,169 @@
+package org.nodewox.client;
+
+import java.nio.ByteBuffer;
+
+//
+// block of consecutive samples of one channel, sent as a single packet:
+//
+// [varint count][int64 t0][varint dt]*(count-1)[sample]*count
+//
+// t0 is the time of first sample in ms since epoch, dt the ms elapsed since the
+// previous sample. every sample is a full vector of channel's datatype x dim, a
+// string element ends with '\0' and a RAW sample is prefixed by its varint length.
+//
+public class SampleBlock {
+
+    // most samples accepted in a decoded block
+    public static final int MAX_COUNT = 65536;
+
+    private final ChannelCodec mCodec;
+    private final int mDim;
+    private final long[] mTimes;
+    private int mCount = 0;
+    private ByteBuffer mData;
+
+    public SampleBlock(ChannelCodec codec, int dim, int capacity) {
+        mCodec = codec;
+        mDim = dim;
+        mTimes = new long[Math.max(capacity, 1)];
+        mData = ByteBuffer.allocate(mTimes.length * Math.max(codec.getElementSize(), 1) * Math.max(dim, 1));
+    }
+
+    public int getCapacity() {
+        return mTimes.length;
+    }
+
+    public int count() {
+        return mCount;
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    public boolean isFull() {
+        return mCount >= mTimes.length;
+    }
+
+    // append a sample, missing elements are filled by zero. return true once block is full
+    public boolean add(long time, Object[] data) {
+        if (isFull())
+            return true;
+
+        if (data == null)
+            data = new Object[0];
+
+        int start = mData.position();
+        int n = (mCodec.getDataType() == Channel.DataType.RAW) ? data.length : Math.min(mDim, data.length);
+        int hint = n * Math.max(mCodec.getElementSize(), 1);
+
+        while (true) {
+            if (mCodec.getDataType() == Channel.DataType.RAW) {
+                ensure(5 + hint);
+                Varint.put(mData, n);
+            } else {
+                ensure(hint);
+            }
+
+            if (mCodec.encode(data, n, mData) != ChannelCodec.OVERFLOW)
+                break;
+
+            // roll back partial sample and retry with a larger buffer
+            mData.position(start);
+            hint = Math.max(hint * 2, 16);
+        }
+
+        // room for padding is made after the encode, a variable length one may have used up any slack
+        ensure(Math.max(mDim - n, 0) * Math.max(mCodec.getElementSize(), 1));
+        mCodec.pad(mDim - n, mData);
+
+        mTimes[mCount++] = time;
+        return isFull();
+    }
+
+    // return encoded block and reset, null if block is empty
+    public byte[] take() {
+        if (mCount == 0)
+            return null;
+
+        int hdr = Varint.size(mCount) + 8;
+        for (int i = 1; i < mCount; i++)
+            hdr += Varint.size(delta(mTimes[i - 1], mTimes[i]));
+
+        ByteBuffer out = ByteBuffer.allocate(hdr + mData.position());
+        Varint.put(out, mCount);
+        out.putLong(mTimes[0]);
+        for (int i = 1; i < mCount; i++)
+            Varint.put(out, delta(mTimes[i - 1], mTimes[i]));
+        out.put(mData.array(), 0, mData.position());
+
+        mCount = 0;
+        mData.clear();
+        return out.array();
+    }
+
+    // decode a block packet into times and samples, null if block is malformed
+    public static Decoded decode(ChannelCodec codec, int dim, byte[] buf, int offset, int length) {
+        ByteBuffer bf = ByteBuffer.wrap(buf, offset, length);
+
+        // every sample takes at least one byte, and all but the first a delta byte too.
+        // checked before allocating anything sized by the untrusted count
+        int cnt = Varint.get(bf);
+        if (cnt <= 0 || cnt > MAX_COUNT || bf.remaining() < 8 + 2L * cnt - 1)
+            return null;
+
+        long[] times = new long[cnt];
+        times[0] = bf.getLong();
+        for (int i = 1; i < cnt; i++) {
+            int dt = Varint.get(bf);
+            if (dt < 0)
+                return null;
+            times[i] = times[i - 1] + dt;
+        }
+
+        Object[][] samples = new Object[cnt][];
+        for (int k = 0; k < cnt; k++) {
+            if (codec.getDataType() == Channel.DataType.RAW) {
+                int n = Varint.get(bf);
+                if (n < 0 || n > bf.remaining())
+                    return null;
+                ByteBuffer one = bf.slice();
+                one.limit(n);
+                samples[k] = codec.decode(one, 0);
+                bf.position(bf.position() + n);
+            } else {
+                if (!bf.hasRemaining())
+                    return null;
+                samples[k] = codec.decode(bf, dim);
+            }
+        }
+
+        return new Decoded(times, samples);
+    }
+
+    private static int delta(long prev, long t) {
+        long d = t - prev;
+        if (d < 0)
+            return 0;
+        return d > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) d;
+    }
+
+    private void ensure(int n) {
+        if (mData.remaining() < n) {
+            ByteBuffer nb = ByteBuffer.allocate(Math.max(mData.capacity() * 2, mData.position() + n));
+            mData.flip();
+            nb.put(mData);
+            mData = nb;
+        }
+    }
+
+    public static class Decoded {
+        public final long[] times;
+        public final Object[][] samples;
+
+        Decoded(long[] times, Object[][] samples) {
+            this.times = times;
+            this.samples = samples;
+        }
+    }
+}
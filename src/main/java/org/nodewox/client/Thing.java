@@ -12,6 +12,20 @@ public abstract class Thing extends Node {
 
     private String mSecret = null;
 
+    // pending packets of male channels in framing mode
+    private final FrameMux mFrame = new FrameMux(256);
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            Messenger mgr = rootMessenger();
+            if (mgr != null)
+                flushFrame(mgr);
+        }
+    };
+
+    // packets of male channels waiting for the feed thread, when enabled
+    private volatile FeedQueue mFeed = null;
+
     public Thing(NxApplication app, String key) {
         super(app, key);
     }
@@ -30,6 +44,138 @@ public abstract class Thing extends Node {
         mSecret = v;
     }
 
+    // time window in ms to gather packets of all male channels into one frame,
+    // 0 to publish every packet on its own. follows the network profile by default
+    public long getFrameWindow() {
+        Messenger mgr = rootMessenger();
+        return mgr == null ? 0 : mgr.getActiveProfile().getFrameWindow();
+    }
+
+    // a frame is published as soon as it reaches this many bytes
+    public int getFrameBudget() {
+        Messenger mgr = rootMessenger();
+        return mgr == null ? 1024 : mgr.getActiveProfile().getFrameBudget();
+    }
+
+    // publish frames compressed when it makes them smaller
+    public boolean isFrameCompressed() {
+        Messenger mgr = rootMessenger();
+        return mgr != null && mgr.getActiveProfile().isCompress();
+    }
+
+    private Messenger rootMessenger() {
+        Node root = getApp().getRootNode();
+        return (root instanceof MessageSensible) ? ((MessageSensible) root).getMessenger() : null;
+    }
+
+    // slots of the ring passing packets from feeding threads to messenger's feed thread,
+    // 0 to publish on the feeding thread itself. packets are dropped while ring is full
+    public int getFeedQueueSize() {
+        return 0;
+    }
+
+    // packets waiting in the feed ring now, and the most ever seen
+    public int getFeedDepth() {
+        FeedQueue q = mFeed;
+        return q == null ? 0 : q.depth();
+    }
+
+    public int getFeedMaxDepth() {
+        FeedQueue q = mFeed;
+        return q == null ? 0 : q.getMaxDepth();
+    }
+
+    public long getFeedDropped() {
+        FeedQueue q = mFeed;
+        return q == null ? 0 : q.getDropped();
+    }
+
+    void publishPacket(Messenger mgr, MaleChannel ch, byte[] packet) {
+        FeedQueue q = feedQueue(mgr);
+        if (q != null)
+            q.offer(ch, packet, false);
+        else
+            deliver(mgr, ch, packet, false);
+    }
+
+    void publishBlock(Messenger mgr, MaleChannel ch, byte[] packet) {
+        FeedQueue q = feedQueue(mgr);
+        if (q != null)
+            q.offer(ch, packet, true);
+        else
+            deliver(mgr, ch, packet, true);
+    }
+
+    private FeedQueue feedQueue(Messenger mgr) {
+        FeedQueue q = mFeed;
+        if (q == null) {
+            int size = getFeedQueueSize();
+            if (size <= 0)
+                return null;
+            synchronized (this) {
+                q = mFeed;
+                if (q == null) {
+                    FeedPump pump = mgr.getFeedPump();
+                    q = new FeedQueue(this, pump, size);
+                    pump.register(q);
+                    mFeed = q;
+                }
+            }
+        }
+        return q;
+    }
+
+    // publish a packet, on the feed thread when the feed queue is enabled
+    void deliver(Messenger mgr, MaleChannel ch, byte[] packet, boolean block) {
+        mgr.getScheduler().submit(ch, packet, block);
+    }
+
+    // packet's turn came in the channel scheduler
+    void send(Messenger mgr, MaleChannel ch, byte[] packet, boolean block) {
+        if (block) {
+            mgr.publish(ch.getTopic() + "/b", packet, 0, false, null, Messenger.Priority.BULK);
+            return;
+        }
+
+        long window = getFrameWindow();
+        if (window <= 0) {
+            mgr.publish(ch.getTopic(), packet, 0, false, null, Messenger.Priority.BULK);
+            return;
+        }
+
+        int budget = getFrameBudget();
+        int seg = FrameMux.segmentSize(ch.getID(), packet == null ? 0 : packet.length);
+        synchronized (mFrame) {
+            if (!mFrame.isEmpty() && mFrame.size() + seg > budget)
+                flushFrame(mgr);
+
+            if (mFrame.isEmpty())
+                mgr.postDelayed(mFlushTask, window);
+            mFrame.add(ch.getID(), packet);
+
+            if (mFrame.size() >= budget)
+                flushFrame(mgr);
+        }
+    }
+
+    // publish pending frame on topic <prefix><thing-id>/m, or deflated on <prefix><thing-id>/z
+    public void flushFrame(Messenger mgr) {
+        synchronized (mFrame) {
+            mgr.removeCallbacks(mFlushTask);
+            if (mFrame.isEmpty())
+                return;
+
+            byte[] frame = mFrame.take();
+            byte[] z = isFrameCompressed() ? FrameMux.compress(frame) : null;
+            if (z != null)
+                mgr.publish(getApp().getTopicPrefix() + getID() + "/z", z, 0, false, null,
+                        Messenger.Priority.BULK);
+            else
+                mgr.publish(getApp().getTopicPrefix() + getID() + "/m", frame, 0, false, null,
+                        Messenger.Priority.BULK);
+        }
+    }
+
     public boolean isRegistered() {
         String k = getKey();
         if (k != null && k.length() > 0) {
@@ -0,0 +1,145 @@
+package org.nodewox.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+//
+// socket factory over a cached ssl context, recording the handshakes of its sockets
+// into the stats of one protocol.
+//
+// the client session cache belongs to the context and is keyed by host and port, so
+// a session is resumed by the next connection of the same protocol: mqtt reconnects,
+// or rest calls to the same server. mqtt and rest share the context when their
+// keystores match, but a session can't be resumed across them as they use different
+// ports. a handshake resumed a session when the session was created before the socket.
+// handshake time is measured from socket creation: mqtt sockets are created unconnected,
+// so MQTT times include the tcp connect, rest sockets are layered over a connected
+// one, so REST times are the handshake alone. don't compare the two.
+//
+public class TlsSocketFactory extends SSLSocketFactory {
+
+    public static final Stats MQTT = new Stats();
+    public static final Stats REST = new Stats();
+
+    private final SSLSocketFactory mBase;
+    private final Stats mStats;
+
+    public TlsSocketFactory(SSLSocketFactory base, Stats stats) {
+        mBase = base;
+        mStats = stats;
+    }
+
+    private Socket watch(Socket s) {
+        if (!(s instanceof SSLSocket))
+            return s;
+
+        final Stats stats = mStats;
+        final long created = System.currentTimeMillis();
+        final long t0 = System.nanoTime();
+        ((SSLSocket) s).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+            @Override
+            public void handshakeCompleted(HandshakeCompletedEvent e) {
+                // later renegotiations are not counted
+                e.getSocket().removeHandshakeCompletedListener(this);
+                stats.add((System.nanoTime() - t0) / 1000000, e.getSession().getCreationTime() < created);
+            }
+        });
+        return s;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return mBase.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return mBase.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return watch(mBase.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+        return watch(mBase.createSocket(s, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return watch(mBase.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return watch(mBase.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return watch(mBase.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+        return watch(mBase.createSocket(address, port, localAddress, localPort));
+    }
+
+    public static class Stats {
+        private final AtomicLong mHandshakes = new AtomicLong();
+        private final AtomicLong mResumed = new AtomicLong();
+        private final AtomicLong mHandshakeTime = new AtomicLong();  // total, ms
+        private volatile long mLastHandshakeTime = 0;
+        private volatile boolean mLastResumed = false;
+
+        private Stats() {
+        }
+
+        private void add(long ms, boolean resumed) {
+            mHandshakes.incrementAndGet();
+            mHandshakeTime.addAndGet(ms);
+            if (resumed)
+                mResumed.incrementAndGet();
+            mLastHandshakeTime = ms;
+            mLastResumed = resumed;
+        }
+
+        public long getHandshakeCount() {
+            return mHandshakes.get();
+        }
+
+        public long getResumedCount() {
+            return mResumed.get();
+        }
+
+        // fraction of handshakes that resumed a session
+        public double getResumeRate() {
+            long n = mHandshakes.get();
+            return n == 0 ? 0 : (double) mResumed.get() / n;
+        }
+
+        // ms of the last handshake, and the average of all
+        public long getLastHandshakeTime() {
+            return mLastHandshakeTime;
+        }
+
+        public boolean isLastResumed() {
+            return mLastResumed;
+        }
+
+        public double getAvgHandshakeTime() {
+            long n = mHandshakes.get();
+            return n == 0 ? 0 : (double) mHandshakeTime.get() / n;
+        }
+    }
+}
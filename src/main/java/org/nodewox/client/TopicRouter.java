@@ -0,0 +1,83 @@
+package org.nodewox.client;
+
+//
+// parses inbound topics of form <prefix><node-id>[/verb] without regex or
+// allocation, and resolves node IDs through the index of the root node
+//
+final class TopicRouter {
+
+    static final int VERB_DATA = 0;     // <prefix><id>
+    static final int VERB_REQUEST = 1;  // <prefix><id>/q
+    static final int VERB_FRAME = 2;    // <prefix><id>/m
+    static final int VERB_BLOCK = 3;    // <prefix><id>/b
+    static final int VERB_ZFRAME = 4;   // <prefix><id>/z, deflated frame
+
+    private final String mPrefix;
+    private final Node mRoot;
+
+    TopicRouter(String prefix, Node root) {
+        mPrefix = prefix;
+        mRoot = root;
+    }
+
+    // return (id << 8 | verb), or -1 if topic is not a known node topic
+    long parse(String topic) {
+        int plen = mPrefix.length();
+        int len = topic.length();
+        if (len <= plen || !topic.startsWith(mPrefix))
+            return -1;
+
+        long id = 0;
+        int i = plen;
+        while (i < len) {
+            char c = topic.charAt(i);
+            if (c < '0' || c > '9')
+                break;
+            id = id * 10 + (c - '0');
+            if (id > Integer.MAX_VALUE)
+                return -1;
+            i++;
+        }
+        if (i == plen)
+            return -1;
+
+        int verb;
+        int rest = len - i;
+        if (rest == 0)
+            verb = VERB_DATA;
+        else if (rest == 2 && topic.charAt(i) == '/') {
+            switch (topic.charAt(i + 1)) {
+                case 'q':
+                    verb = VERB_REQUEST;
+                    break;
+                case 'm':
+                    verb = VERB_FRAME;
+                    break;
+                case 'b':
+                    verb = VERB_BLOCK;
+                    break;
+                case 'z':
+                    verb = VERB_ZFRAME;
+                    break;
+                default:
+                    return -1;
+            }
+        } else
+            return -1;
+
+        return (id << 8) | verb;
+    }
+
+    static int idOf(long route) {
+        return (int) (route >>> 8);
+    }
+
+    static int verbOf(long route) {
+        return (int) (route & 0xff);
+    }
+
+    // node of id in the tree under root
+    Node resolve(int id) {
+        return mRoot.findNode(id);
+    }
+}
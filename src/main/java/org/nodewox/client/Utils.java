@@ -7,10 +7,13 @@ import java.io.IOException;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
@@ -21,6 +24,85 @@ import javax.net.ssl.TrustManagerFactory;
 
 public class Utils {
 
+    // socket factories by digest of keystores and passwords, least recently used first
+    private static final int SSL_CACHE_SIZE = 4;
+    private static final LinkedHashMap<String, SSLSocketFactory> sSSLCache = new LinkedHashMap<>(8, 0.75f, true);
+
+    //
+    // cached ssl socket factory, keystores are parsed once per distinct content.
+    // connections through the same factory share its context's session cache, wrap it in a
+    // TlsSocketFactory to record their handshakes
+    //
+    public static SSLSocketFactory getSSLSocketFactory(byte[] ca, String capass, byte[] cert_p12, String certpass) {
+        String key = sslKey(ca, capass, cert_p12, certpass);
+        synchronized (sSSLCache) {
+            SSLSocketFactory f = sSSLCache.get(key);
+            if (f != null)
+                return f;
+        }
+
+        // built outside the lock, a concurrent miss only wastes one build
+        SSLSocketFactory f = makeSSLSocketFactory(ca, capass, cert_p12, certpass);
+        if (f != null) {
+            synchronized (sSSLCache) {
+                sSSLCache.put(key, f);
+                Iterator<String> it = sSSLCache.keySet().iterator();
+                while (sSSLCache.size() > SSL_CACHE_SIZE) {
+                    it.next();
+                    it.remove();
+                }
+            }
+        }
+        return f;
+    }
+
+    // drop the cached factory of these keystores, e.g. after the client cert was replaced
+    public static void invalidateSSLSocketFactory(String key) {
+        synchronized (sSSLCache) {
+            sSSLCache.remove(key);
+        }
+    }
+
+    public static void clearSSLCache() {
+        synchronized (sSSLCache) {
+            sSSLCache.clear();
+        }
+    }
+
+    // digest of keystores and passwords identifying a socket factory
+    public static String sslKey(byte[] ca, String capass, byte[] cert_p12, String certpass) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        // same key for keystores that make the same context: an empty store is none,
+        // a password is ignored without its store and null is the empty one
+        boolean hasCA = ca != null && ca.length > 0;
+        boolean hasCert = cert_p12 != null && cert_p12.length > 0;
+        digest(md, hasCA ? ca : null);
+        digest(md, hasCA ? (capass == null ? "" : capass).getBytes() : null);
+        digest(md, hasCert ? cert_p12 : null);
+        digest(md, hasCert ? (certpass == null ? "" : certpass).getBytes() : null);
+
+        byte[] d = md.digest();
+        StringBuilder sb = new StringBuilder(d.length * 2);
+        for (byte b : d) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    // length prefixed, so that adjacent fields can't shift into each other
+    private static void digest(MessageDigest md, byte[] v) {
+        int n = v == null ? -1 : v.length;
+        md.update(new byte[]{(byte) (n >> 24), (byte) (n >> 16), (byte) (n >> 8), (byte) n});
+        if (v != null)
+            md.update(v);
+    }
+
     //
     // make ssl socket context
     //
@@ -31,7 +113,7 @@ public class Utils {
             KeyStore kstore;
             try {
                 kstore = KeyStore.getInstance("BKS");
-                kstore.load((new ByteArrayInputStream(ca)), capass.toCharArray());
+                kstore.load((new ByteArrayInputStream(ca)), (capass == null ? "" : capass).toCharArray());
             } catch (KeyStoreException e) {
                 Log.e("nodewox", e.getMessage());
                 return null;
@@ -65,7 +147,7 @@ public class Utils {
             KeyStore cli_store;
             try {
                 cli_store = KeyStore.getInstance("PKCS12");
-                cli_store.load(new ByteArrayInputStream(cert_p12), certpass.toCharArray());
+                cli_store.load(new ByteArrayInputStream(cert_p12), (certpass == null ? "" : certpass).toCharArray());
             } catch (KeyStoreException e) {
                 Log.e("nodewox", e.getMessage());
                 return null;
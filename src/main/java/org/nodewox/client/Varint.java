@@ -0,0 +1,64 @@
+package org.nodewox.client;
+
+import java.nio.ByteBuffer;
+
+// unsigned LEB128 varints used by frames and sample blocks
+final class Varint {
+
+    private Varint() {
+    }
+
+    static int size(int v) {
+        int n = 1;
+        while ((v & ~0x7f) != 0) {
+            v >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    static int put(byte[] buf, int pos, int v) {
+        while ((v & ~0x7f) != 0) {
+            buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+        return pos;
+    }
+
+    static void put(ByteBuffer buf, int v) {
+        while ((v & ~0x7f) != 0) {
+            buf.put((byte) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
+    // read non-negative varint at pos, -1 on truncated or oversize value
+    static long get(byte[] buf, int pos, int end) {
+        long v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (pos >= end)
+                return -1;
+            byte b = buf[pos++];
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return v <= Integer.MAX_VALUE ? v : -1;
+        }
+        return -1;
+    }
+
+    // read non-negative varint from buf, -1 on truncated or oversize value
+    static int get(ByteBuffer buf) {
+        long v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!buf.hasRemaining())
+                return -1;
+            byte b = buf.get();
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return v <= Integer.MAX_VALUE ? (int) v : -1;
+        }
+        return -1;
+    }
+}